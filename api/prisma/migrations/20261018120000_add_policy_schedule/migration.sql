@@ -0,0 +1,2 @@
+-- AlterTable
+ALTER TABLE "Policy" ADD COLUMN "schedule" TEXT NOT NULL DEFAULT '[]';
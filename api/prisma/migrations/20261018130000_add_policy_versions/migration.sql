@@ -0,0 +1,14 @@
+-- AlterTable
+ALTER TABLE "Policy" ADD COLUMN "version" INTEGER NOT NULL DEFAULT 0;
+
+-- CreateTable
+CREATE TABLE "PolicyChange" (
+    "id" TEXT NOT NULL PRIMARY KEY,
+    "deviceId" TEXT NOT NULL,
+    "version" INTEGER NOT NULL,
+    "patch" TEXT NOT NULL,
+    "createdAt" DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+-- CreateIndex
+CREATE UNIQUE INDEX "PolicyChange_deviceId_version_key" ON "PolicyChange"("deviceId", "version");
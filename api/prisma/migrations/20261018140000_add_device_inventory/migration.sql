@@ -0,0 +1,12 @@
+-- CreateTable
+CREATE TABLE "DeviceInventory" (
+    "id" TEXT NOT NULL PRIMARY KEY,
+    "deviceId" TEXT NOT NULL,
+    "hash" TEXT NOT NULL,
+    "apps" TEXT NOT NULL DEFAULT '[]',
+    "updatedAt" DATETIME NOT NULL,
+    CONSTRAINT "DeviceInventory_deviceId_fkey" FOREIGN KEY ("deviceId") REFERENCES "Device" ("deviceId") ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+-- CreateIndex
+CREATE UNIQUE INDEX "DeviceInventory_deviceId_key" ON "DeviceInventory"("deviceId");
@@ -0,0 +1,11 @@
+-- CreateTable
+CREATE TABLE "GroupBroadcast" (
+    "id" INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT,
+    "groupId" TEXT NOT NULL,
+    "type" TEXT NOT NULL,
+    "payload" TEXT NOT NULL DEFAULT '{}',
+    "createdAt" DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+-- CreateIndex
+CREATE INDEX "GroupBroadcast_groupId_id_idx" ON "GroupBroadcast"("groupId", "id");
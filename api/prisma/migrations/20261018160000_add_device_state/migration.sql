@@ -0,0 +1,6 @@
+-- AlterTable
+ALTER TABLE "Device" ADD COLUMN "foregroundApp" TEXT;
+ALTER TABLE "Device" ADD COLUMN "lockTaskState" TEXT;
+ALTER TABLE "Device" ADD COLUMN "appliedPolicyVersion" INTEGER;
+ALTER TABLE "Device" ADD COLUMN "batteryLevel" INTEGER;
+ALTER TABLE "Device" ADD COLUMN "charging" BOOLEAN;
@@ -0,0 +1,20 @@
+-- Drop history left behind by devices that were already deleted
+DELETE FROM "PolicyChange" WHERE "deviceId" NOT IN (SELECT "deviceId" FROM "Device");
+
+-- RedefineTables
+PRAGMA defer_foreign_keys=ON;
+PRAGMA foreign_keys=OFF;
+CREATE TABLE "new_PolicyChange" (
+    "id" TEXT NOT NULL PRIMARY KEY,
+    "deviceId" TEXT NOT NULL,
+    "version" INTEGER NOT NULL,
+    "patch" TEXT NOT NULL,
+    "createdAt" DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    CONSTRAINT "PolicyChange_deviceId_fkey" FOREIGN KEY ("deviceId") REFERENCES "Device" ("deviceId") ON DELETE CASCADE ON UPDATE CASCADE
+);
+INSERT INTO "new_PolicyChange" ("id", "deviceId", "version", "patch", "createdAt") SELECT "id", "deviceId", "version", "patch", "createdAt" FROM "PolicyChange";
+DROP TABLE "PolicyChange";
+ALTER TABLE "new_PolicyChange" RENAME TO "PolicyChange";
+CREATE UNIQUE INDEX "PolicyChange_deviceId_version_key" ON "PolicyChange"("deviceId", "version");
+PRAGMA foreign_keys=ON;
+PRAGMA defer_foreign_keys=OFF;
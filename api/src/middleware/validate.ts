@@ -5,7 +5,8 @@ export const registerDeviceSchema = z.object({
   name: z.string().optional(),
   model: z.string().optional(),
   osVersion: z.string().optional(),
-  appVersion: z.string().optional()
+  appVersion: z.string().optional(),
+  assignedClass: z.string().max(64).regex(/^[\w.-]+$/).optional()
 });
 
 export const updatePolicySchema = z.object({
@@ -14,7 +15,14 @@ export const updatePolicySchema = z.object({
   blockedApps: z.array(z.string()).optional(),
   screenshotInterval: z.number().min(5000).max(3600000).optional(),
   kioskMode: z.boolean().optional(),
-  unlockPin: z.string().max(32).nullable().optional()
+  unlockPin: z.string().max(32).nullable().optional(),
+  schedule: z.array(z.object({
+    days: z.array(z.number().int().min(0).max(6)).min(1),
+    start: z.string().regex(/^([01]\d|2[0-3]):[0-5]\d$/),
+    end: z.string().regex(/^([01]\d|2[0-3]):[0-5]\d$/),
+    blockedApps: z.array(z.string()).optional(),
+    allowedApps: z.array(z.string()).optional()
+  })).max(100).optional()
 });
 
 export const loginSchema = z.object({
@@ -44,3 +52,39 @@ export const screenshotUploadSchema = z.object({
   url: z.string().max(2048).optional().nullable(),
   tabId: z.string().max(64).optional().nullable()
 });
+
+export const screenshotRawUploadSchema = z.object({
+  deviceId: z.string().min(1),
+  timestamp: z.coerce.number().optional(),
+  event: z.string().max(32).optional(),
+  url: z.string().max(2048).optional(),
+  tabId: z.string().max(64).optional()
+});
+
+export const groupIdSchema = z.string().min(1).max(64).regex(/^[\w.-]+$/);
+
+export const broadcastCommandSchema = z.object({
+  type: z.string().min(1).max(64),
+  payload: z.record(z.unknown()).optional(),
+  groupId: groupIdSchema.optional()
+});
+
+export const heartbeatSchema = z.object({
+  currentUrl: z.string().max(2048).optional(),
+  state: z.object({
+    foregroundApp: z.string().max(255).optional(),
+    lockTask: z.enum(['none', 'locked', 'pinned']).optional(),
+    policyVersion: z.number().int().min(-1).optional(),
+    battery: z.number().int().min(0).max(100).optional(),
+    charging: z.boolean().optional()
+  }).optional()
+});
+
+export const relayKeySchema = z.string().min(32).max(128).regex(/^[0-9a-f]+$/);
+
+export const relaySyncSchema = z.object({
+  relayId: z.string().min(3),
+  relayKey: relayKeySchema,
+  devices: z.array(z.object({ deviceId: z.string().min(3), key: relayKeySchema })).min(1).max(100),
+  acks: z.record(z.array(z.string()).max(200)).optional()
+});
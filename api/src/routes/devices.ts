@@ -3,18 +3,28 @@ import prisma from '../prisma';
 import { getGateway } from '../socket/gateway';
 import { getAndroidManagementService } from '../services/android-management-singleton';
 import { formatDeviceForSocket, safeParsePolicy } from '../utils/formatDevice';
-import { updateDeviceHeartbeat } from '../utils/deviceUpdate';
+import { shouldPersistLiveness, updateDeviceHeartbeat } from '../utils/deviceUpdate';
+import { buildPolicyPatch } from '../utils/policyDelta';
+import { hashRelayKey, relayKeyMatches, verifyRelayKeys } from '../utils/relayKey';
 
 type PolicyUpdateData = {
   blockedDomains?: string;
   allowedApps?: string;
   blockedApps?: string;
+  schedule?: string;
   screenshotInterval?: number;
   kioskMode?: boolean;
   unlockPin?: string | null;
 };
 
-type PolicyWithBlockedApps = { blockedDomains: string; allowedApps: string; blockedApps?: string; screenshotInterval: number; kioskMode: boolean; unlockPin?: string | null };
+type PolicyWithBlockedApps = { blockedDomains: string; allowedApps: string; blockedApps?: string; schedule?: string; screenshotInterval: number; kioskMode: boolean; unlockPin?: string | null; version?: number };
+
+const POLICY_DELTA_MAX_GAP = 50;
+const POLICY_UPDATE_MAX_ATTEMPTS = 3;
+const BROADCAST_ALL_GROUP = 'all';
+const BROADCAST_FEED_SIZE = 20;
+const BROADCAST_FEED_TTL_MS = 10 * 60 * 1000;
+const BROADCAST_FEED_MAX_AGE_S = 15;
 
 const router = express.Router();
 
@@ -56,7 +66,7 @@ router.post('/register', async (req: Request, res: Response) => {
   try {
     const { registerDeviceSchema } = require('../middleware/validate');
     const validatedData = registerDeviceSchema.parse(req.body);
-    const { deviceId, name, model, osVersion, appVersion } = validatedData;
+    const { deviceId, name, model, osVersion, appVersion, assignedClass } = validatedData;
 
     let globalPolicy = await prisma.globalPolicy.findFirst();
 
@@ -88,6 +98,7 @@ router.post('/register', async (req: Request, res: Response) => {
         model,
         osVersion,
         appVersion,
+        ...(assignedClass !== undefined && { assignedClass }),
         lastSeen: new Date(),
         status: 'online'
       },
@@ -97,6 +108,7 @@ router.post('/register', async (req: Request, res: Response) => {
         model,
         osVersion,
         appVersion,
+        assignedClass,
         status: 'online',
         policy: {
           create: {
@@ -168,19 +180,50 @@ router.get('/', async (req: Request, res: Response) => {
   }
 });
 
+/**
+ * Envia o comando por socket e grava-o no feed do grupo (`groupId` = turma em Device.assignedClass;
+ * sem `groupId`, vai para todos). O serviço nativo lê o feed em GET /groups/:groupId/broadcasts,
+ * uma resposta idêntica para toda a turma que proxies/CDN podem guardar em cache. O comando do
+ * socket leva `broadcastId` para que o app e o feed não executem o mesmo broadcast duas vezes.
+ * Cada grupo guarda só os BROADCAST_FEED_SIZE mais recentes dentro de BROADCAST_FEED_TTL_MS.
+ */
 router.post('/commands/broadcast', async (req: Request, res: Response) => {
-  const { type, payload } = req.body || {};
-  if (!type || typeof type !== 'string') {
-    return res.status(400).json({ error: 'type is required' });
+  const { broadcastCommandSchema } = require('../middleware/validate');
+  const parsed = broadcastCommandSchema.safeParse(req.body || {});
+  if (!parsed.success) {
+    return res.status(400).json({ error: 'type is required', details: parsed.error.flatten() });
   }
+  const { type, payload, groupId } = parsed.data;
   try {
-    const devices = await prisma.device.findMany({ select: { deviceId: true } });
+    const devices = await prisma.device.findMany({
+      where: groupId ? { assignedClass: groupId } : undefined,
+      select: { deviceId: true }
+    });
+    const feedGroup = groupId ?? BROADCAST_ALL_GROUP;
+    const broadcast = await prisma.groupBroadcast.create({
+      data: { groupId: feedGroup, type, payload: JSON.stringify(payload ?? {}) }
+    });
+    const kept = await prisma.groupBroadcast.findMany({
+      where: { groupId: feedGroup },
+      orderBy: { id: 'desc' },
+      take: BROADCAST_FEED_SIZE,
+      select: { id: true }
+    });
+    await prisma.groupBroadcast.deleteMany({
+      where: {
+        groupId: feedGroup,
+        OR: [
+          { id: { notIn: kept.map(b => b.id) } },
+          { createdAt: { lt: new Date(Date.now() - BROADCAST_FEED_TTL_MS) } }
+        ]
+      }
+    });
     const gateway = getGateway();
-    const commandPayload = { type, payload: payload || {}, timestamp: Date.now() };
+    const commandPayload = { type, payload: payload || {}, timestamp: Date.now(), broadcastId: broadcast.id };
     for (const d of devices) {
       if (gateway) gateway.notifyDevice(d.deviceId, 'COMMAND', commandPayload);
     }
-    res.json({ success: true, sentTo: devices.length });
+    res.json({ success: true, sentTo: devices.length, broadcastId: broadcast.id });
   } catch (error) {
     const message = error instanceof Error ? error.message : String(error);
     if (process.env.NODE_ENV !== 'production') {
@@ -190,6 +233,39 @@ router.post('/commands/broadcast', async (req: Request, res: Response) => {
   }
 });
 
+/**
+ * Feed de broadcasts da turma (mais os enviados a todos) dos últimos minutos, igual para todos os
+ * dispositivos do grupo. Cacheável publicamente por BROADCAST_FEED_MAX_AGE_S com ETag, para que um
+ * proxy/CDN na escola sirva um único objeto à turma; o dispositivo executa só os `id` acima do último visto.
+ */
+router.get('/groups/:groupId/broadcasts', async (req: Request, res: Response) => {
+  const { groupIdSchema } = require('../middleware/validate');
+  const parsed = groupIdSchema.safeParse(req.params.groupId);
+  if (!parsed.success) return res.status(400).json({ error: 'invalid groupId' });
+  const groupId: string = parsed.data;
+  try {
+    const groups = groupId === BROADCAST_ALL_GROUP ? [BROADCAST_ALL_GROUP] : [groupId, BROADCAST_ALL_GROUP];
+    const list = await prisma.groupBroadcast.findMany({
+      where: { groupId: { in: groups }, createdAt: { gte: new Date(Date.now() - BROADCAST_FEED_TTL_MS) } },
+      orderBy: { id: 'desc' },
+      take: BROADCAST_FEED_SIZE
+    });
+    res.set('Cache-Control', `public, max-age=${BROADCAST_FEED_MAX_AGE_S}`);
+    res.json({
+      groupId,
+      broadcasts: list.reverse().map(b => ({
+        id: b.id,
+        type: b.type,
+        payload: JSON.parse(b.payload || '{}'),
+        createdAt: b.createdAt
+      }))
+    });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('GET group broadcasts error:', error);
+    res.status(500).json({ error: 'Failed to fetch broadcasts' });
+  }
+});
+
 /**
  * @swagger
  * /api/devices/{deviceId}:
@@ -220,6 +296,7 @@ router.get('/:deviceId', async (req: Request, res: Response) => {
       policies: safeParsePolicy(device.policy)
     };
 
+    res.set('Cache-Control', 'private, no-cache');
     res.json(formattedDevice);
   } catch (error) {
     if (process.env.NODE_ENV !== 'production') {
@@ -229,31 +306,59 @@ router.get('/:deviceId', async (req: Request, res: Response) => {
   }
 });
 
+/**
+ * Grava a política, incrementa `version` e registra o patch dessa versão numa única transação. O
+ * update só vale se `version` ainda for a lida no início (senão outro PUT concorrente venceu e a
+ * sequência é refeita), para que cada patch seja calculado sobre a versão anterior de fato.
+ */
+async function updatePolicyWithChange(deviceId: string, updateData: PolicyUpdateData): Promise<PolicyWithBlockedApps> {
+  for (let attempt = 0; ; attempt++) {
+    const updated = await prisma.$transaction(async (tx) => {
+      const previousPolicy = await tx.policy.findUnique({ where: { deviceId } }) as PolicyWithBlockedApps | null;
+      if (!previousPolicy) throw new Error('Policy not found');
+      const previousVersion = previousPolicy.version ?? 0;
+      const version = previousVersion + 1;
+      const { count } = await tx.policy.updateMany({
+        where: { deviceId, version: previousVersion } as Parameters<typeof tx.policy.updateMany>[0]['where'],
+        data: { ...updateData, version } as Parameters<typeof tx.policy.updateMany>[0]['data']
+      });
+      if (count === 0) return null;
+      const updatedPolicy = await tx.policy.findUnique({ where: { deviceId } }) as PolicyWithBlockedApps;
+      const parsedPolicy = safeParsePolicy(updatedPolicy);
+      const patch = parsedPolicy ? buildPolicyPatch(safeParsePolicy(previousPolicy), parsedPolicy) : null;
+      await tx.policyChange.create({ data: { deviceId, version, patch: JSON.stringify(patch ?? {}) } });
+      await tx.policyChange.deleteMany({ where: { deviceId, version: { lte: version - POLICY_DELTA_MAX_GAP } } });
+      return updatedPolicy;
+    });
+    if (updated) return updated;
+    if (attempt >= POLICY_UPDATE_MAX_ATTEMPTS - 1) throw new Error('Policy version conflict');
+  }
+}
+
 router.put('/:deviceId/policies', async (req: Request, res: Response) => {
   const { deviceId } = req.params;
 
   try {
     const { updatePolicySchema } = require('../middleware/validate');
     const validatedData = updatePolicySchema.parse(req.body);
-    const { blockedDomains, allowedApps, blockedApps, screenshotInterval, kioskMode, unlockPin } = validatedData;
+    const { blockedDomains, allowedApps, blockedApps, schedule, screenshotInterval, kioskMode, unlockPin } = validatedData;
 
     const updateData: PolicyUpdateData = {
       ...(blockedDomains && { blockedDomains: JSON.stringify(blockedDomains) }),
       ...(allowedApps && { allowedApps: JSON.stringify(allowedApps) }),
       ...(blockedApps !== undefined && { blockedApps: JSON.stringify(blockedApps) }),
+      ...(schedule !== undefined && { schedule: JSON.stringify(schedule) }),
       ...(screenshotInterval !== undefined && { screenshotInterval }),
       ...(kioskMode !== undefined && { kioskMode }),
       ...(unlockPin !== undefined && { unlockPin })
     };
-    const updatedPolicy = await prisma.policy.update({
-      where: { deviceId },
-      data: updateData as Parameters<typeof prisma.policy.update>[0]['data']
-    }) as PolicyWithBlockedApps;
+    const updatedPolicy = await updatePolicyWithChange(deviceId, updateData);
 
     const policiesPayload = {
       blockedDomains: JSON.parse(updatedPolicy.blockedDomains),
       allowedApps: JSON.parse(updatedPolicy.allowedApps),
       blockedApps: JSON.parse(updatedPolicy.blockedApps ?? '[]'),
+      schedule: JSON.parse(updatedPolicy.schedule ?? '[]'),
       screenshotInterval: updatedPolicy.screenshotInterval,
       kioskMode: updatedPolicy.kioskMode ?? false
     };
@@ -297,14 +402,74 @@ router.put('/:deviceId/policies', async (req: Request, res: Response) => {
   }
 });
 
+/**
+ * Mudanças de política desde a versão `since` que o dispositivo já aplicou: `{ version, changes }`,
+ * com um patch por versão em ordem. Quando o intervalo é maior que POLICY_DELTA_MAX_GAP, o histórico
+ * já foi podado, `since` é desconhecido ou `policyId` não é mais o da política atual (dispositivo
+ * excluído e registrado de novo), devolve `{ version, snapshot }` com a política completa.
+ */
+router.get('/:deviceId/policies/changes', async (req: Request, res: Response) => {
+  const { deviceId } = req.params;
+  const since = Number(req.query.since);
+  if (!Number.isInteger(since) || since < 0) {
+    return res.status(400).json({ error: 'since must be a non-negative integer' });
+  }
+  try {
+    const policy = await prisma.policy.findUnique({ where: { deviceId } }) as PolicyWithBlockedApps | null;
+    if (!policy) return res.status(404).json({ error: 'Policy not found' });
+    const device = await prisma.device.findUnique({ where: { deviceId }, select: { assignedClass: true } });
+    const groupId = device?.assignedClass ?? null;
+    const version = policy.version ?? 0;
+    const policyId = typeof req.query.policyId === 'string' ? req.query.policyId : undefined;
+    res.set('Cache-Control', 'private, no-cache');
+    if (policyId !== undefined && policyId !== (policy as { id?: string }).id) {
+      return res.json({ version, groupId, snapshot: safeParsePolicy(policy) });
+    }
+    if (since === version) return res.json({ version, groupId, changes: [] });
+    if (since > version || version - since > POLICY_DELTA_MAX_GAP) {
+      return res.json({ version, groupId, snapshot: safeParsePolicy(policy) });
+    }
+    const changes = await prisma.policyChange.findMany({
+      where: { deviceId, version: { gt: since, lte: version } },
+      orderBy: { version: 'asc' }
+    });
+    if (changes.length !== version - since) {
+      return res.json({ version, groupId, snapshot: safeParsePolicy(policy) });
+    }
+    res.json({ version, groupId, changes: changes.map(c => ({ version: c.version, ...JSON.parse(c.patch || '{}') })) });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('GET policies/changes error:', error);
+    res.status(500).json({ error: 'Failed to fetch policy changes' });
+  }
+});
+
+/**
+ * Heartbeat do dispositivo. `state` traz só os campos que mudaram desde o último heartbeat aceite
+ * (o serviço nativo guarda o último estado confirmado). Sem `currentUrl` nem `state` é só presença:
+ * lastSeen é gravado no máximo a cada LIVENESS_WRITE_MIN_MS e o painel não é notificado.
+ */
 router.put('/:deviceId/heartbeat', async (req: Request, res: Response) => {
   const { deviceId } = req.params;
-  const { currentUrl } = req.body || {};
+  const { heartbeatSchema } = require('../middleware/validate');
+  const parsed = heartbeatSchema.safeParse(req.body || {});
+  if (!parsed.success) {
+    return res.status(400).json({ error: 'Dados inválidos', details: parsed.error.flatten() });
+  }
+  const { currentUrl, state } = parsed.data;
+  const hasChanges = currentUrl !== undefined || (state !== undefined && Object.keys(state).length > 0);
+  if (!hasChanges && !shouldPersistLiveness(deviceId)) {
+    return res.json({ success: true, persisted: false });
+  }
   try {
     await updateDeviceHeartbeat(prisma, deviceId, {
       lastSeen: new Date(),
       status: 'online',
-      currentUrl: typeof currentUrl === 'string' ? currentUrl : undefined
+      currentUrl,
+      foregroundApp: state?.foregroundApp,
+      lockTaskState: state?.lockTask,
+      appliedPolicyVersion: state?.policyVersion,
+      batteryLevel: state?.battery,
+      charging: state?.charging
     });
     const device = await prisma.device.findUnique({
       where: { deviceId },
@@ -324,10 +489,31 @@ router.put('/:deviceId/heartbeat', async (req: Request, res: Response) => {
       deviceId,
       lastSeen: device.lastSeen.getTime(),
       currentUrl: (device as { currentUrl?: string | null }).currentUrl ?? undefined,
-      status: device.status
+      status: device.status,
+      ...(state && { state })
     });
 
-    res.json({ success: true });
+    res.json({ success: true, persisted: true });
+  } catch (error) {
+    res.status(404).json({ error: 'Device not found' });
+  }
+});
+
+router.put('/:deviceId/group', async (req: Request, res: Response) => {
+  const { deviceId } = req.params;
+  const { groupIdSchema } = require('../middleware/validate');
+  const raw = req.body?.groupId;
+  const parsed = raw === null ? { success: true as const, data: null } : groupIdSchema.safeParse(raw);
+  if (!parsed.success) return res.status(400).json({ error: 'groupId must be a class id or null' });
+  try {
+    const device = await prisma.device.update({
+      where: { deviceId },
+      data: { assignedClass: parsed.data },
+      include: { policy: true }
+    });
+    const gateway = getGateway();
+    if (gateway) gateway.notifyDevice('all_admins', 'DEVICE_UPDATED', formatDeviceForSocket(device));
+    res.json({ success: true, groupId: device.assignedClass });
   } catch (error) {
     res.status(404).json({ error: 'Device not found' });
   }
@@ -428,6 +614,168 @@ router.post('/:deviceId/commands/ack', async (req: Request, res: Response) => {
   }
 });
 
+const INVENTORY_MAX_APPS = 1000;
+
+type InventoryApp = { packageName: string; [k: string]: unknown };
+
+function isInventoryApp(value: unknown): value is InventoryApp {
+  return !!value && typeof value === 'object' && typeof (value as { packageName?: unknown }).packageName === 'string';
+}
+
+/**
+ * Inventário de apps do launcher enviado pelo MdmSyncService. A cada ciclo o dispositivo manda só
+ * `{ hash }`; a lista vai quando o hash difere: completa (`apps`) ou como delta (`baseHash`,
+ * `upserted`, `removed`) sobre o inventário guardado, que tem de ter o hash `baseHash` (senão 409).
+ */
+router.put('/:deviceId/inventory', async (req: Request, res: Response) => {
+  const { deviceId } = req.params;
+  const { hash, apps, baseHash, upserted, removed } = req.body || {};
+  if (typeof hash !== 'string' || hash === '') {
+    return res.status(400).json({ error: 'hash is required' });
+  }
+  try {
+    const device = await prisma.device.findUnique({ where: { deviceId } });
+    if (!device) return res.status(404).json({ error: 'Device not found' });
+    const current = await prisma.deviceInventory.findUnique({ where: { deviceId } });
+    if (Array.isArray(apps)) {
+      const list = JSON.stringify(apps.filter(isInventoryApp).slice(0, INVENTORY_MAX_APPS));
+      await prisma.deviceInventory.upsert({
+        where: { deviceId },
+        create: { deviceId, hash, apps: list },
+        update: { hash, apps: list }
+      });
+      return res.json({ match: true, hash });
+    }
+    if (typeof baseHash === 'string') {
+      if (!current || current.hash !== baseHash) {
+        return res.status(409).json({ match: false, hash: current?.hash ?? null });
+      }
+      const byPackage = new Map<string, InventoryApp>();
+      for (const app of JSON.parse(current.apps || '[]') as unknown[]) {
+        if (isInventoryApp(app)) byPackage.set(app.packageName, app);
+      }
+      if (Array.isArray(removed)) {
+        for (const pkg of removed) if (typeof pkg === 'string') byPackage.delete(pkg);
+      }
+      if (Array.isArray(upserted)) {
+        for (const app of upserted) if (isInventoryApp(app)) byPackage.set(app.packageName, app);
+      }
+      await prisma.deviceInventory.update({
+        where: { deviceId },
+        data: { hash, apps: JSON.stringify([...byPackage.values()].slice(0, INVENTORY_MAX_APPS)) }
+      });
+      return res.json({ match: true, hash });
+    }
+    res.json({ match: current?.hash === hash, hash: current?.hash ?? null });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('PUT inventory error:', error);
+    res.status(500).json({ error: 'Failed to sync inventory' });
+  }
+});
+
+router.get('/:deviceId/inventory', async (req: Request, res: Response) => {
+  const { deviceId } = req.params;
+  try {
+    const inventory = await prisma.deviceInventory.findUnique({ where: { deviceId } });
+    if (!inventory) return res.status(404).json({ error: 'Inventory not found' });
+    res.json({ hash: inventory.hash, updatedAt: inventory.updatedAt, apps: JSON.parse(inventory.apps || '[]') });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('GET inventory error:', error);
+    res.status(500).json({ error: 'Failed to fetch inventory' });
+  }
+});
+
+/**
+ * Registra a chave de relay gerada pelo dispositivo (só o hash SHA-256 é guardado). A primeira chave
+ * fica valendo; reenviar a mesma chave é idempotente e uma chave diferente devolve 409. Excluir o
+ * dispositivo apaga a chave.
+ */
+router.put('/:deviceId/relay-key', async (req: Request, res: Response) => {
+  const { deviceId } = req.params;
+  const { relayKeySchema } = require('../middleware/validate');
+  const parsed = relayKeySchema.safeParse(req.body?.key);
+  if (!parsed.success) return res.status(400).json({ error: 'key must be a hex string' });
+  try {
+    const device = await prisma.device.findUnique({ where: { deviceId }, select: { deviceId: true } });
+    if (!device) return res.status(404).json({ error: 'Device not found' });
+    const current = await prisma.deviceRelayKey.findUnique({ where: { deviceId } });
+    if (current) {
+      if (!relayKeyMatches(parsed.data, current.keyHash)) return res.status(409).json({ error: 'Relay key already registered' });
+      return res.json({ success: true });
+    }
+    await prisma.deviceRelayKey.create({ data: { deviceId, keyHash: hashRelayKey(parsed.data) } });
+    res.json({ success: true });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('PUT relay-key error:', error);
+    res.status(500).json({ error: 'Failed to register relay key' });
+  }
+});
+
+/**
+ * Sincronização em lote para o modo relay da sala: o relay se identifica com a própria chave e envia
+ * a chave de cada par ativo junto dos acks acumulados. Só os pares cuja chave confere são marcados
+ * como online (numa única escrita) e recebem políticas e comandos pendentes; os demais voltam em
+ * `rejected` e o relay deixa de atendê-los.
+ */
+router.post('/relay/sync', async (req: Request, res: Response) => {
+  const { relaySyncSchema } = require('../middleware/validate');
+  const parsed = relaySyncSchema.safeParse(req.body || {});
+  if (!parsed.success) {
+    return res.status(400).json({ error: 'Dados inválidos', details: parsed.error.flatten() });
+  }
+  const { relayId, relayKey, devices: credentials, acks } = parsed.data as {
+    relayId: string;
+    relayKey: string;
+    devices: { deviceId: string; key: string }[];
+    acks?: Record<string, string[]>;
+  };
+  try {
+    const relayVerified = await verifyRelayKeys(prisma, [{ deviceId: relayId, key: relayKey }]);
+    if (!relayVerified.has(relayId)) return res.status(401).json({ error: 'Invalid relay key' });
+    const verified = await verifyRelayKeys(prisma, credentials);
+    const ids = [...verified];
+    const rejected = credentials.map(c => c.deviceId).filter(id => !verified.has(id));
+    if (ids.length === 0) return res.json({ devices: {}, rejected });
+
+    await prisma.device.updateMany({
+      where: { deviceId: { in: ids } },
+      data: { lastSeen: new Date(), status: 'online' }
+    });
+    if (acks) {
+      for (const [deviceId, commandIds] of Object.entries(acks)) {
+        if (!verified.has(deviceId) || commandIds.length === 0) continue;
+        await prisma.devicePendingCommand.updateMany({
+          where: { id: { in: commandIds }, deviceId },
+          data: { consumedAt: new Date() }
+        });
+      }
+    }
+    const devices = await prisma.device.findMany({
+      where: { deviceId: { in: ids } },
+      include: { policy: true }
+    });
+    const since = new Date(Date.now() - PENDING_COMMANDS_TTL_MS);
+    const pending = await prisma.devicePendingCommand.findMany({
+      where: { deviceId: { in: ids }, consumedAt: null, createdAt: { gte: since } },
+      orderBy: { createdAt: 'asc' }
+    });
+
+    const gateway = getGateway();
+    const result: Record<string, { policies: ReturnType<typeof safeParsePolicy>; commands: unknown[] }> = {};
+    for (const device of devices) {
+      result[device.deviceId] = { policies: safeParsePolicy(device.policy), commands: [] };
+      if (gateway) gateway.notifyDevice('all_admins', 'DEVICE_UPDATED', formatDeviceForSocket(device));
+    }
+    for (const c of pending) {
+      result[c.deviceId]?.commands.push({ id: c.id, type: c.type, payload: JSON.parse(c.payload || '{}'), createdAt: c.createdAt });
+    }
+    res.json({ devices: result, rejected });
+  } catch (error) {
+    if (process.env.NODE_ENV !== 'production') console.error('POST relay/sync error:', error);
+    res.status(500).json({ error: 'Failed to sync relay batch' });
+  }
+});
+
 router.get('/:deviceId/audit', async (req: Request, res: Response) => {
   const { deviceId } = req.params;
   try {
@@ -1,41 +1,73 @@
 import express, { Request, Response } from 'express';
 import prisma from '../prisma';
-import { screenshotUploadSchema } from '../middleware/validate';
+import { screenshotUploadSchema, screenshotRawUploadSchema } from '../middleware/validate';
 
 const router = express.Router();
 
+type ScreenshotInput = {
+  deviceId: string;
+  image: string;
+  timestamp?: number | string;
+  event?: string;
+  url?: string | null;
+  tabId?: string | null;
+};
+
+async function saveScreenshot({ deviceId, image, timestamp, event, url, tabId }: ScreenshotInput) {
+  const screenshot = await prisma.screenshot.create({
+    data: {
+      deviceId,
+      data: image,
+      timestamp: timestamp ? new Date(timestamp) : new Date(),
+      event: event || 'MANUAL',
+      url,
+      tabId
+    }
+  });
+
+  const count = await prisma.screenshot.count({ where: { deviceId } });
+  if (count > 100) {
+    const oldestScreenshots = await prisma.screenshot.findMany({
+      where: { deviceId },
+      orderBy: { timestamp: 'asc' },
+      take: count - 100
+    });
+
+    await prisma.screenshot.deleteMany({
+      where: { id: { in: oldestScreenshots.map((s: any) => s.id) } }
+    });
+  }
+  return screenshot;
+}
+
 router.post('/upload', async (req: Request, res: Response) => {
   try {
     const parsed = screenshotUploadSchema.safeParse(req.body);
     if (!parsed.success) {
       return res.status(400).json({ error: 'Dados inválidos', details: parsed.error.flatten() });
     }
-    const { deviceId, image, timestamp, event, url, tabId } = parsed.data;
-
-    const screenshot = await prisma.screenshot.create({
-      data: {
-        deviceId,
-        data: image,
-        timestamp: timestamp ? new Date(timestamp) : new Date(),
-        event: event || 'MANUAL',
-        url,
-        tabId
-      }
-    });
+    const screenshot = await saveScreenshot(parsed.data);
+    res.json({ success: true, id: screenshot.id });
+  } catch (err) {
+    res.status(500).json({ error: 'Failed to save screenshot' });
+  }
+});
 
-    const count = await prisma.screenshot.count({ where: { deviceId } });
-    if (count > 100) {
-      const oldestScreenshots = await prisma.screenshot.findMany({
-        where: { deviceId },
-        orderBy: { timestamp: 'asc' },
-        take: count - 100
-      });
-
-      await prisma.screenshot.deleteMany({
-        where: { id: { in: oldestScreenshots.map((s: any) => s.id) } }
-      });
+/**
+ * Upload binário do pipeline nativo (KioskModule.captureScreenshot): o corpo é o JPEG/WebP cru e os
+ * metadados vêm na query, assim o dispositivo não passa a imagem por base64 nem pelo heap do JS.
+ */
+router.post('/upload-raw', express.raw({ type: ['image/jpeg', 'image/webp'], limit: '5mb' }), async (req: Request, res: Response) => {
+  try {
+    const parsed = screenshotRawUploadSchema.safeParse(req.query);
+    if (!parsed.success || !Buffer.isBuffer(req.body) || req.body.length === 0) {
+      return res.status(400).json({ error: 'Dados inválidos', details: parsed.success ? undefined : parsed.error.flatten() });
     }
-
+    const mimeType = req.is('image/webp') ? 'image/webp' : 'image/jpeg';
+    const screenshot = await saveScreenshot({
+      ...parsed.data,
+      image: `data:${mimeType};base64,${req.body.toString('base64')}`
+    });
     res.json({ success: true, id: screenshot.id });
   } catch (err) {
     res.status(500).json({ error: 'Failed to save screenshot' });
@@ -22,7 +22,8 @@ export class Gateway {
       socket.on('DEVICE_HEARTBEAT', async (data: { deviceId: string; timestamp?: number; currentUrl?: string }) => {
         const { deviceId, currentUrl } = data;
         const prisma = (await import('../prisma')).default;
-        const { updateDeviceHeartbeat } = await import('../utils/deviceUpdate');
+        const { shouldPersistLiveness, updateDeviceHeartbeat } = await import('../utils/deviceUpdate');
+        if (typeof currentUrl !== 'string' && !shouldPersistLiveness(deviceId)) return;
 
         try {
           await updateDeviceHeartbeat(prisma, deviceId, {
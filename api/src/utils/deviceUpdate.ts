@@ -4,21 +4,53 @@ export type DeviceHeartbeatData = {
   lastSeen: Date;
   status: string;
   currentUrl?: string | null;
+  foregroundApp?: string | null;
+  lockTaskState?: string | null;
+  appliedPolicyVersion?: number | null;
+  batteryLevel?: number | null;
+  charging?: boolean | null;
 };
 
+/** Intervalo mínimo entre gravações de lastSeen para heartbeats que não trazem nenhuma mudança. */
+export const LIVENESS_WRITE_MIN_MS = 60 * 1000;
+const LIVENESS_TRACKED_MAX = 10000;
+
+const lastLivenessWrite = new Map<string, number>();
+
+/**
+ * Heartbeats só de presença gravam lastSeen no máximo uma vez por LIVENESS_WRITE_MIN_MS por
+ * dispositivo (a tarefa de offline usa 5 min). Heartbeats com mudanças de estado gravam sempre.
+ */
+export function shouldPersistLiveness(deviceId: string, now = Date.now()): boolean {
+  const last = lastLivenessWrite.get(deviceId);
+  if (last !== undefined && now - last < LIVENESS_WRITE_MIN_MS) return false;
+  if (lastLivenessWrite.size >= LIVENESS_TRACKED_MAX) lastLivenessWrite.clear();
+  lastLivenessWrite.set(deviceId, now);
+  return true;
+}
+
 /**
- * Atualiza lastSeen, status e opcionalmente currentUrl do device via SQL bruto.
- * Usado enquanto o cliente Prisma gerado não incluir o campo currentUrl (após prisma generate).
+ * Atualiza lastSeen, status e os campos de estado presentes via SQL bruto; campos ausentes
+ * (undefined/null) mantêm o valor gravado, então um heartbeat só com delta não apaga o resto.
+ * Usado enquanto o cliente Prisma gerado não incluir estes campos (após prisma generate).
  */
 export async function updateDeviceHeartbeat(
   prisma: PrismaClient,
   deviceId: string,
   data: DeviceHeartbeatData
 ): Promise<void> {
-  const { lastSeen, status, currentUrl } = data;
+  const { lastSeen, status, currentUrl, foregroundApp, lockTaskState, appliedPolicyVersion, batteryLevel, charging } = data;
+  lastLivenessWrite.set(deviceId, lastSeen.getTime());
   await prisma.$executeRaw`
     UPDATE Device
-    SET lastSeen = ${lastSeen.toISOString()}, status = ${status}, currentUrl = ${currentUrl ?? null}
+    SET lastSeen = ${lastSeen.toISOString()},
+        status = ${status},
+        currentUrl = COALESCE(${currentUrl ?? null}, currentUrl),
+        foregroundApp = COALESCE(${foregroundApp ?? null}, foregroundApp),
+        lockTaskState = COALESCE(${lockTaskState ?? null}, lockTaskState),
+        appliedPolicyVersion = COALESCE(${appliedPolicyVersion ?? null}, appliedPolicyVersion),
+        batteryLevel = COALESCE(${batteryLevel ?? null}, batteryLevel),
+        charging = COALESCE(${charging ?? null}, charging)
     WHERE deviceId = ${deviceId}
   `;
 }
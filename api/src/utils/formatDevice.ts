@@ -2,6 +2,7 @@ type PolicyInput = {
   blockedDomains: string;
   allowedApps: string;
   blockedApps?: string;
+  schedule?: string;
   unlockPin?: string | null;
 } | null | undefined;
 
@@ -14,6 +15,7 @@ export function safeParsePolicy(policy: PolicyInput) {
       blockedDomains: JSON.parse(policy.blockedDomains),
       allowedApps: JSON.parse(policy.allowedApps),
       blockedApps: JSON.parse((policy as { blockedApps?: string }).blockedApps ?? '[]'),
+      schedule: JSON.parse((policy as { schedule?: string }).schedule ?? '[]'),
       hasUnlockPin: !!(unlockPin != null && String(unlockPin).trim() !== '')
     };
   } catch {
@@ -28,6 +30,7 @@ type DeviceWithPolicy = {
     blockedDomains: string;
     allowedApps: string;
     blockedApps?: string;
+    schedule?: string;
     screenshotInterval: number;
     kioskMode: boolean;
     unlockPin?: string | null;
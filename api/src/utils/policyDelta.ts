@@ -0,0 +1,43 @@
+export type ListPatch = { add: string[]; remove: string[] };
+
+export type PolicyPatch = {
+  blockedApps?: ListPatch;
+  allowedApps?: ListPatch;
+  blockedDomains?: ListPatch;
+  set?: Record<string, unknown>;
+};
+
+type ParsedPolicy = Record<string, unknown>;
+
+const LIST_FIELDS = ['blockedApps', 'allowedApps', 'blockedDomains'] as const;
+const SCALAR_FIELDS = ['schedule', 'screenshotInterval', 'kioskMode', 'hasUnlockPin'] as const;
+
+function asStringList(value: unknown): string[] {
+  return Array.isArray(value) ? value.filter((v): v is string => typeof v === 'string') : [];
+}
+
+export function diffList(prev: string[], next: string[]): ListPatch | undefined {
+  const prevSet = new Set(prev);
+  const nextSet = new Set(next);
+  const add = next.filter(v => !prevSet.has(v));
+  const remove = prev.filter(v => !nextSet.has(v));
+  return add.length || remove.length ? { add, remove } : undefined;
+}
+
+/**
+ * Diferença entre duas políticas já parseadas (safeParsePolicy): adições/remoções nas listas e
+ * campos escalares alterados em `set`. Devolve null quando nada mudou.
+ */
+export function buildPolicyPatch(prev: ParsedPolicy | null, next: ParsedPolicy): PolicyPatch | null {
+  const patch: PolicyPatch = {};
+  for (const field of LIST_FIELDS) {
+    const diff = diffList(asStringList(prev?.[field]), asStringList(next[field]));
+    if (diff) patch[field] = diff;
+  }
+  const set: Record<string, unknown> = {};
+  for (const field of SCALAR_FIELDS) {
+    if (JSON.stringify(prev?.[field]) !== JSON.stringify(next[field])) set[field] = next[field];
+  }
+  if (Object.keys(set).length) patch.set = set;
+  return Object.keys(patch).length ? patch : null;
+}
@@ -0,0 +1,32 @@
+import { createHash, timingSafeEqual } from 'crypto';
+import type { PrismaClient } from '@prisma/client';
+
+export function hashRelayKey(key: string): string {
+  return createHash('sha256').update(key, 'utf8').digest('hex');
+}
+
+export function relayKeyMatches(key: string, keyHash: string): boolean {
+  const a = Buffer.from(hashRelayKey(key), 'hex');
+  const b = Buffer.from(keyHash, 'hex');
+  return a.length === b.length && timingSafeEqual(a, b);
+}
+
+/**
+ * Devolve os deviceIds cuja chave de relay confere com a registrada em PUT /:deviceId/relay-key.
+ * Dispositivos sem chave registrada nunca são aceitos pelo relay.
+ */
+export async function verifyRelayKeys(
+  prisma: PrismaClient,
+  credentials: { deviceId: string; key: string }[]
+): Promise<Set<string>> {
+  const rows = await prisma.deviceRelayKey.findMany({
+    where: { deviceId: { in: credentials.map(c => c.deviceId) } }
+  });
+  const hashes = new Map(rows.map(r => [r.deviceId, r.keyHash]));
+  const verified = new Set<string>();
+  for (const { deviceId, key } of credentials) {
+    const keyHash = hashes.get(deviceId);
+    if (keyHash && relayKeyMatches(key, keyHash)) verified.add(deviceId);
+  }
+  return verified;
+}
@@ -0,0 +1,182 @@
+package com.octoclass.mobile;
+
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Launcher-app inventory for the dashboard's block-list builder.
+ * Built with one queryIntentActivities scan, then kept current per package from the sync
+ * service's package broadcasts. Packages hidden by the blocked-apps policy (or uninstalled with
+ * their data kept) stay in the list with hidden=true, so the dashboard still sees installed
+ * blocked apps and a hide or unhide changes one entry instead of adding or dropping it. The SHA-256 content hash is what gets uploaded each cycle; the
+ * app list itself is only sent when the backend's hash differs, as a delta of the packages that
+ * changed since the last confirmed upload when the backend still holds that upload, else in full.
+ */
+public class AppInventory {
+
+  private static final int MATCH_DISABLED_COMPONENTS = 0x00000200;
+  private static final int MATCH_UNINSTALLED_PACKAGES = 0x00002000;
+  private static final int MATCH_ALL_STATES = MATCH_DISABLED_COMPONENTS | MATCH_UNINSTALLED_PACKAGES;
+
+  private final Map<String, JSONObject> entries = new TreeMap<>();
+  private final Set<String> pending = new HashSet<>();
+  private boolean loaded;
+  @Nullable private String hash;
+  @Nullable private String confirmedHash;
+
+  /** Scans launcher activities the first time it is called; later calls are no-ops. */
+  public synchronized void ensureLoaded(PackageManager pm) {
+    if (loaded) return;
+    Intent launcher = new Intent(Intent.ACTION_MAIN);
+    launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+    Set<String> visible = packagesOf(pm.queryIntentActivities(launcher, 0));
+    List<ResolveInfo> list = pm.queryIntentActivities(launcher, MATCH_ALL_STATES);
+    if (list != null) {
+      for (ResolveInfo ri : list) {
+        if (ri.activityInfo == null || ri.activityInfo.packageName == null) continue;
+        String pkg = ri.activityInfo.packageName;
+        if (entries.containsKey(pkg)) continue;
+        JSONObject entry = describe(pm, pkg, ri.activityInfo.applicationInfo, !visible.contains(pkg));
+        if (entry != null) entries.put(pkg, entry);
+      }
+    }
+    loaded = true;
+    hash = null;
+  }
+
+  /** Re-reads one package after an install, update or removal; ignored until the first scan. */
+  public synchronized void refreshPackage(PackageManager pm, String pkg) {
+    if (!loaded || pkg == null) return;
+    JSONObject entry = null;
+    Intent launcher = new Intent(Intent.ACTION_MAIN);
+    launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+    launcher.setPackage(pkg);
+    try {
+      List<ResolveInfo> list = pm.queryIntentActivities(launcher, MATCH_ALL_STATES);
+      if (list != null && !list.isEmpty() && list.get(0).activityInfo != null) {
+        boolean hidden = packagesOf(pm.queryIntentActivities(launcher, 0)).isEmpty();
+        entry = describe(pm, pkg, list.get(0).activityInfo.applicationInfo, hidden);
+      }
+    } catch (Exception ignored) {}
+    JSONObject previous = entry != null ? entries.put(pkg, entry) : entries.remove(pkg);
+    if (previous == null && entry == null) return;
+    if (previous != null && entry != null && previous.toString().equals(entry.toString())) return;
+    pending.add(pkg);
+    hash = null;
+  }
+
+  /** Hex SHA-256 over the sorted entries; cached until the next change. */
+  public synchronized String getHash() {
+    if (hash != null) return hash;
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (JSONObject entry : entries.values()) {
+        digest.update(entry.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+      }
+      StringBuilder sb = new StringBuilder(64);
+      for (byte b : digest.digest()) sb.append(String.format("%02x", b & 0xff));
+      hash = sb.toString();
+    } catch (Exception e) {
+      hash = "";
+    }
+    return hash;
+  }
+
+  @Nullable
+  public synchronized String getConfirmedHash() {
+    return confirmedHash;
+  }
+
+  public synchronized JSONArray toJson() {
+    JSONArray out = new JSONArray();
+    for (JSONObject entry : entries.values()) out.put(entry);
+    return out;
+  }
+
+  /** {hash, apps} body with the whole list. */
+  public synchronized JSONObject buildFullUpload() throws Exception {
+    JSONObject body = new JSONObject();
+    body.put("hash", getHash());
+    body.put("apps", toJson());
+    return body;
+  }
+
+  /**
+   * {hash, baseHash, upserted, removed} body with the packages changed since the last confirmed
+   * upload, or null when the backend does not hold that upload (serverHash differs) or there is none.
+   */
+  @Nullable
+  public synchronized JSONObject buildDeltaUpload(@Nullable String serverHash) throws Exception {
+    if (confirmedHash == null || !confirmedHash.equals(serverHash)) return null;
+    JSONArray upserted = new JSONArray();
+    JSONArray removed = new JSONArray();
+    for (String pkg : pending) {
+      JSONObject entry = entries.get(pkg);
+      if (entry != null) upserted.put(entry);
+      else removed.put(pkg);
+    }
+    JSONObject body = new JSONObject();
+    body.put("hash", getHash());
+    body.put("baseHash", confirmedHash);
+    body.put("upserted", upserted);
+    body.put("removed", removed);
+    return body;
+  }
+
+  /**
+   * Records that the backend now holds the inventory with this hash. Pending changes are only
+   * dropped if nothing changed while the upload was in flight; otherwise they ride on the next delta.
+   */
+  public synchronized void confirm(String uploadedHash) {
+    confirmedHash = uploadedHash;
+    if (uploadedHash.equals(getHash())) pending.clear();
+  }
+
+  private static Set<String> packagesOf(@Nullable List<ResolveInfo> list) {
+    Set<String> out = new HashSet<>();
+    if (list == null) return out;
+    for (ResolveInfo ri : list) {
+      if (ri.activityInfo != null && ri.activityInfo.packageName != null) out.add(ri.activityInfo.packageName);
+    }
+    return out;
+  }
+
+  /** hidden: resolvable only with MATCH_UNINSTALLED_PACKAGES/MATCH_DISABLED_COMPONENTS. */
+  @Nullable
+  private static JSONObject describe(PackageManager pm, String pkg, @Nullable ApplicationInfo info, boolean hidden) {
+    try {
+      JSONObject entry = new JSONObject();
+      entry.put("packageName", pkg);
+      CharSequence label = info != null ? pm.getApplicationLabel(info) : null;
+      entry.put("label", label != null ? label.toString() : pkg);
+      entry.put("hidden", hidden);
+      PackageInfo pi = pm.getPackageInfo(pkg, MATCH_UNINSTALLED_PACKAGES);
+      entry.put("versionName", pi.versionName != null ? pi.versionName : "");
+      entry.put("versionCode", Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? pi.getLongVersionCode() : pi.versionCode);
+      if (info != null) {
+        entry.put("system", (info.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) entry.put("category", info.category);
+      }
+      return entry;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,351 @@
+package com.octoclass.mobile;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Classroom-local relay for MdmSyncService.
+ * In relay role one device (typically the teacher's) accepts peers on a local TCP socket,
+ * syncs the whole group with the backend in a single POST /devices/relay/sync per cycle, and
+ * fans each peer's policies and pending commands back out; peer liveness and acks ride on
+ * that batch. Peers talk to the relay with one JSON line per request:
+ *   {"op":"sync","deviceId":"...","key":"..."}                 -> {"ready":true,"policies":{...},"commands":[...]}
+ *   {"op":"ack","deviceId":"...","key":"...","commandIds":[...]} -> {"ok":true}
+ * Every request carries the peer's relay key (registered with the backend). The relay forwards
+ * it in the batch and serves a peer only after the backend accepted that key; once accepted, a
+ * request for the same deviceId with another key is refused. Only commands the relay handed to
+ * that peer are acked upstream, and a delivered command that is not acked within REDELIVER_MS is
+ * offered again. A peer that cannot reach the relay, or gets ready=false (unverified, or the
+ * relay's own backend sync is failing), syncs directly with the backend.
+ */
+public class ClassroomRelay {
+
+  public static final String ROLE_OFF = "off";
+  public static final String ROLE_RELAY = "relay";
+  public static final String ROLE_PEER = "peer";
+  public static final int DEFAULT_PORT = 47800;
+
+  private static final int CONNECT_TIMEOUT_MS = 1500;
+  private static final int IO_TIMEOUT_MS = 5000;
+  private static final long PEER_EXPIRY_MS = 90_000L;
+  private static final long UPSTREAM_STALE_MS = 90_000L;
+  private static final long REDELIVER_MS = 60_000L;
+  private static final int MAX_PEERS = 100;
+
+  private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+  private ServerSocket serverSocket;
+  private ExecutorService handlers;
+  private volatile boolean running;
+  private volatile long upstreamOkAt = -1;
+  private int port;
+
+  private static final class Peer {
+    String key;
+    boolean verified;
+    long lastSeen;
+    JSONObject policies;
+    final List<JSONObject> commands = new ArrayList<>();
+    final Map<String, Long> delivered = new HashMap<>();
+    final List<String> acks = new ArrayList<>();
+
+    Peer(String key) {
+      this.key = key;
+    }
+
+    void reset(String newKey) {
+      key = newKey;
+      verified = false;
+      policies = null;
+      commands.clear();
+      delivered.clear();
+      acks.clear();
+    }
+  }
+
+  public synchronized void start(int port) throws IOException {
+    if (running && this.port == port) return;
+    stop();
+    ServerSocket socket = new ServerSocket();
+    socket.setReuseAddress(true);
+    socket.bind(new InetSocketAddress(port));
+    serverSocket = socket;
+    this.port = port;
+    handlers = Executors.newFixedThreadPool(4);
+    running = true;
+    Thread acceptThread = new Thread(this::acceptLoop, "mdm-relay-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public synchronized void stop() {
+    running = false;
+    if (serverSocket != null) {
+      try {
+        serverSocket.close();
+      } catch (IOException ignored) {}
+      serverSocket = null;
+    }
+    if (handlers != null) {
+      handlers.shutdownNow();
+      handlers = null;
+    }
+    peers.clear();
+    upstreamOkAt = -1;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getPeerCount() {
+    return peers.size();
+  }
+
+  /**
+   * Body for POST /devices/relay/sync covering every live peer's key and pending acks, signed
+   * with the relay's own id and key, or null when no peer has checked in recently.
+   */
+  @Nullable
+  public JSONObject buildBatchRequest(String relayId, String relayKey) {
+    long now = SystemClock.elapsedRealtime();
+    JSONArray devices = new JSONArray();
+    JSONObject acks = new JSONObject();
+    try {
+      Iterator<Map.Entry<String, Peer>> it = peers.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Peer> e = it.next();
+        Peer peer = e.getValue();
+        synchronized (peer) {
+          if (now - peer.lastSeen > PEER_EXPIRY_MS) {
+            it.remove();
+            continue;
+          }
+          devices.put(new JSONObject().put("deviceId", e.getKey()).put("key", peer.key));
+          if (peer.verified && !peer.acks.isEmpty()) acks.put(e.getKey(), new JSONArray(peer.acks));
+        }
+      }
+      if (devices.length() == 0) return null;
+      JSONObject body = new JSONObject();
+      body.put("relayId", relayId);
+      body.put("relayKey", relayKey);
+      body.put("devices", devices);
+      body.put("acks", acks);
+      return body;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Stores the backend's per-peer policies/commands, marks peers whose key the backend accepted
+   * as verified, drops peers it rejected, and clears acks the backend has now seen.
+   */
+  public void onBatchResponse(JSONObject request, JSONObject response) {
+    JSONObject devices = response.optJSONObject("devices");
+    if (devices == null) return;
+    Map<String, String> sentKeys = new HashMap<>();
+    JSONArray sent = request.optJSONArray("devices");
+    for (int i = 0; sent != null && i < sent.length(); i++) {
+      JSONObject d = sent.optJSONObject(i);
+      if (d != null) sentKeys.put(d.optString("deviceId", ""), d.optString("key", ""));
+    }
+    JSONArray rejected = response.optJSONArray("rejected");
+    for (int i = 0; rejected != null && i < rejected.length(); i++) {
+      String deviceId = rejected.optString(i, "");
+      Peer peer = peers.get(deviceId);
+      if (peer == null) continue;
+      synchronized (peer) {
+        if (keysEqual(peer.key, sentKeys.get(deviceId))) peers.remove(deviceId, peer);
+      }
+    }
+    JSONObject sentAcks = request.optJSONObject("acks");
+    for (Map.Entry<String, Peer> e : peers.entrySet()) {
+      Peer peer = e.getValue();
+      JSONObject data = devices.optJSONObject(e.getKey());
+      synchronized (peer) {
+        if (data == null || !keysEqual(peer.key, sentKeys.get(e.getKey()))) continue;
+        peer.verified = true;
+        JSONArray acked = sentAcks != null ? sentAcks.optJSONArray(e.getKey()) : null;
+        if (acked != null) {
+          for (int i = 0; i < acked.length(); i++) peer.acks.remove(acked.optString(i, ""));
+        }
+        JSONObject policies = data.optJSONObject("policies");
+        if (policies != null) peer.policies = policies;
+        peer.commands.clear();
+        Set<String> stillPending = new HashSet<>();
+        JSONArray commands = data.optJSONArray("commands");
+        if (commands != null) {
+          for (int i = 0; i < commands.length(); i++) {
+            JSONObject c = commands.optJSONObject(i);
+            if (c == null) continue;
+            String id = c.optString("id", "");
+            stillPending.add(id);
+            if (!peer.acks.contains(id)) peer.commands.add(c);
+          }
+        }
+        peer.delivered.keySet().retainAll(stillPending);
+      }
+    }
+    upstreamOkAt = SystemClock.elapsedRealtime();
+  }
+
+  /** The relay's own backend sync failed; peers get ready=false until the next successful batch. */
+  public void markUpstreamFailed() {
+    upstreamOkAt = -1;
+  }
+
+  private boolean isUpstreamFresh(long now) {
+    long okAt = upstreamOkAt;
+    return okAt >= 0 && now - okAt <= UPSTREAM_STALE_MS;
+  }
+
+  private static boolean keysEqual(@Nullable String a, @Nullable String b) {
+    if (a == null || b == null) return false;
+    return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Sends one request line to a relay and returns its reply, or null if the relay is unreachable. */
+  @Nullable
+  public static JSONObject exchange(String host, int port, JSONObject request) {
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+      socket.setSoTimeout(IO_TIMEOUT_MS);
+      OutputStream os = socket.getOutputStream();
+      os.write((request.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+      os.flush();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      return line != null ? new JSONObject(line) : null;
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("ClassroomRelay", "exchange " + host + ":" + port, e);
+      return null;
+    }
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      ServerSocket socket = serverSocket;
+      ExecutorService pool = handlers;
+      if (socket == null || pool == null) return;
+      try {
+        Socket client = socket.accept();
+        if (!isLocalPeer(client.getInetAddress())) {
+          client.close();
+          continue;
+        }
+        pool.execute(() -> handle(client));
+      } catch (Exception e) {
+        if (running && BuildConfig.DEBUG) android.util.Log.w("ClassroomRelay", "accept", e);
+      }
+    }
+  }
+
+  /** Peers are on the classroom network; connections from routable addresses are dropped. */
+  private static boolean isLocalPeer(@Nullable InetAddress address) {
+    return address != null
+      && (address.isSiteLocalAddress() || address.isLinkLocalAddress() || address.isLoopbackAddress());
+  }
+
+  private void handle(Socket client) {
+    try (Socket socket = client) {
+      socket.setSoTimeout(IO_TIMEOUT_MS);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      JSONObject reply = line != null ? dispatch(new JSONObject(line)) : null;
+      if (reply == null) reply = new JSONObject().put("ok", false);
+      OutputStream os = socket.getOutputStream();
+      os.write((reply.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+      os.flush();
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("ClassroomRelay", "handle", e);
+    }
+  }
+
+  @Nullable
+  private JSONObject dispatch(JSONObject request) throws Exception {
+    String deviceId = request.optString("deviceId", "");
+    String key = request.optString("key", "");
+    if (deviceId.isEmpty() || key.isEmpty()) return null;
+    Peer peer = peers.get(deviceId);
+    if (peer == null) {
+      if (peers.size() >= MAX_PEERS) return null;
+      peers.putIfAbsent(deviceId, new Peer(key));
+      peer = peers.get(deviceId);
+      if (peer == null) return null;
+    }
+    synchronized (peer) {
+      if (!keysEqual(peer.key, key)) {
+        if (peer.verified) return null;
+        peer.reset(key);
+      }
+      long now = SystemClock.elapsedRealtime();
+      peer.lastSeen = now;
+      String op = request.optString("op", "");
+      if ("ack".equals(op)) {
+        if (!peer.verified) return null;
+        JSONArray ids = request.optJSONArray("commandIds");
+        if (ids != null) {
+          for (int i = 0; i < ids.length(); i++) {
+            String id = ids.optString(i, null);
+            if (id == null || peer.delivered.remove(id) == null || peer.acks.contains(id)) continue;
+            peer.acks.add(id);
+            removeCommand(peer, id);
+          }
+        }
+        return new JSONObject().put("ok", true);
+      }
+      if (!"sync".equals(op)) return null;
+      JSONObject reply = new JSONObject();
+      if (!peer.verified || peer.policies == null || !isUpstreamFresh(now)) {
+        return reply.put("ready", false);
+      }
+      JSONArray commands = new JSONArray();
+      for (JSONObject c : peer.commands) {
+        String id = c.optString("id", "");
+        Long deliveredAt = peer.delivered.get(id);
+        if (deliveredAt != null && now - deliveredAt < REDELIVER_MS) continue;
+        commands.put(c);
+        peer.delivered.put(id, now);
+      }
+      reply.put("ready", true);
+      reply.put("policies", peer.policies);
+      reply.put("commands", commands);
+      return reply;
+    }
+  }
+
+  private static void removeCommand(Peer peer, String id) {
+    Iterator<JSONObject> it = peer.commands.iterator();
+    while (it.hasNext()) {
+      if (id.equals(it.next().optString("id", ""))) it.remove();
+    }
+  }
+}
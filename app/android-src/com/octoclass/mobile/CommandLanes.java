@@ -0,0 +1,122 @@
+package com.octoclass.mobile;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide priority lanes for sync work.
+ * The urgent lane only ever runs command fetch/execution (LOCK_SCREEN, ALERT), so a class lock
+ * never waits behind policy reconciliation, bulk DPM calls or uploads, which run on the
+ * background lane. Each lane keeps queue-depth and wait-time counters for diagnostics.
+ */
+public final class CommandLanes {
+
+  private static final Set<String> URGENT_TYPES = new HashSet<>(Arrays.asList("LOCK_SCREEN", "ALERT"));
+
+  private static final Lane URGENT = new Lane("urgent", Thread.MAX_PRIORITY);
+  private static final Lane BACKGROUND = new Lane("background", Thread.NORM_PRIORITY - 1);
+
+  private CommandLanes() {}
+
+  public static boolean isUrgent(String commandType) {
+    return commandType != null && URGENT_TYPES.contains(commandType);
+  }
+
+  public static void submitUrgent(Runnable task) {
+    URGENT.submit(task);
+  }
+
+  public static void submitBackground(Runnable task) {
+    BACKGROUND.submit(task);
+  }
+
+  public static List<Lane> lanes() {
+    return Arrays.asList(URGENT, BACKGROUND);
+  }
+
+  /** Single-thread executor plus counters; threads are created lazily and never shut down. */
+  public static final class Lane {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong lastWaitMs = new AtomicLong();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    Lane(String name, int threadPriority) {
+      this.name = name;
+      this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+        Thread t = new Thread(r, "mdm-lane-" + name);
+        t.setPriority(threadPriority);
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    void submit(Runnable task) {
+      final long enqueuedAt = SystemClock.elapsedRealtime();
+      submitted.incrementAndGet();
+      raiseMax(maxDepth, depth.incrementAndGet());
+      executor.execute(() -> {
+        long wait = SystemClock.elapsedRealtime() - enqueuedAt;
+        lastWaitMs.set(wait);
+        raiseMax(maxWaitMs, wait);
+        try {
+          task.run();
+        } catch (Exception e) {
+          if (BuildConfig.DEBUG) android.util.Log.w("CommandLanes", "lane " + name + " task", e);
+        } finally {
+          depth.decrementAndGet();
+          completed.incrementAndGet();
+        }
+      });
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Tasks queued or running right now. */
+    public int getDepth() {
+      return depth.get();
+    }
+
+    public int getMaxDepth() {
+      return (int) maxDepth.get();
+    }
+
+    public long getSubmitted() {
+      return submitted.get();
+    }
+
+    public long getCompleted() {
+      return completed.get();
+    }
+
+    public long getLastWaitMs() {
+      return lastWaitMs.get();
+    }
+
+    public long getMaxWaitMs() {
+      return maxWaitMs.get();
+    }
+
+    private static void raiseMax(AtomicLong max, long value) {
+      long prev;
+      do {
+        prev = max.get();
+      } while (value > prev && !max.compareAndSet(prev, value));
+    }
+  }
+}
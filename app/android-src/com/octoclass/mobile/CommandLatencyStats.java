@@ -0,0 +1,182 @@
+package com.octoclass.mobile;
+
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * End-to-end latency tracing for remote commands.
+ * Each command carries a {@link Trace} through server enqueue (when the payload has it), fetch,
+ * dequeue on the handler and completion of the system call; the trace is sent back with the ack.
+ * Per command type a rolling window of the last samples is kept to report percentiles.
+ */
+public class CommandLatencyStats {
+
+  public static final String METRIC_DEVICE = "fetchToDone";
+  public static final String METRIC_END_TO_END = "enqueueToDone";
+
+  private static final int WINDOW_SIZE = 128;
+
+  private final Map<String, Window> windows = new LinkedHashMap<>();
+
+  /** Timestamps of one command; wall-clock values so they line up with the server's enqueue time. */
+  public static final class Trace {
+    public final String id;
+    public final String type;
+    public final String source;
+    public final long enqueuedAt;
+    public final long fetchedAt;
+    private final long fetchedElapsed;
+    private volatile long dequeuedAt;
+    private volatile long doneAt;
+    private volatile long doneElapsed;
+
+    public Trace(String id, String type, String source, long enqueuedAt) {
+      this.id = id;
+      this.type = type;
+      this.source = source;
+      this.enqueuedAt = enqueuedAt;
+      this.fetchedAt = System.currentTimeMillis();
+      this.fetchedElapsed = SystemClock.elapsedRealtime();
+    }
+
+    public void markDequeued() {
+      dequeuedAt = System.currentTimeMillis();
+    }
+
+    public void markDone() {
+      doneAt = System.currentTimeMillis();
+      doneElapsed = SystemClock.elapsedRealtime();
+    }
+
+    public boolean isDone() {
+      return doneAt > 0;
+    }
+
+    /** Fetch to done, measured on the monotonic clock; -1 if the command has not finished. */
+    public long deviceLatencyMs() {
+      return doneElapsed > 0 ? doneElapsed - fetchedElapsed : -1;
+    }
+
+    /** Server enqueue to done; subject to clock skew between device and server. -1 if unknown. */
+    public long endToEndLatencyMs() {
+      return enqueuedAt > 0 && doneAt > 0 ? Math.max(0, doneAt - enqueuedAt) : -1;
+    }
+
+    public JSONObject toJson() {
+      JSONObject o = new JSONObject();
+      try {
+        o.put("id", id);
+        o.put("type", type);
+        o.put("source", source);
+        if (enqueuedAt > 0) o.put("enqueuedAt", enqueuedAt);
+        o.put("fetchedAt", fetchedAt);
+        if (dequeuedAt > 0) o.put("dequeuedAt", dequeuedAt);
+        if (doneAt > 0) o.put("doneAt", doneAt);
+      } catch (Exception ignored) {}
+      return o;
+    }
+  }
+
+  public static final class Summary {
+    public final String type;
+    public final String metric;
+    public final int count;
+    public final long p50;
+    public final long p90;
+    public final long p99;
+    public final long max;
+
+    Summary(String type, String metric, long[] sorted) {
+      this.type = type;
+      this.metric = metric;
+      this.count = sorted.length;
+      this.p50 = percentile(sorted, 50);
+      this.p90 = percentile(sorted, 90);
+      this.p99 = percentile(sorted, 99);
+      this.max = sorted[sorted.length - 1];
+    }
+  }
+
+  private static final class Window {
+    final long[] samples = new long[WINDOW_SIZE];
+    int next;
+    int size;
+
+    void add(long value) {
+      samples[next] = value;
+      next = (next + 1) % WINDOW_SIZE;
+      if (size < WINDOW_SIZE) size++;
+    }
+
+    long[] sortedCopy() {
+      long[] copy = Arrays.copyOf(samples, size);
+      Arrays.sort(copy);
+      return copy;
+    }
+  }
+
+  public synchronized void record(Trace trace) {
+    long device = trace.deviceLatencyMs();
+    if (device >= 0) window(trace.type, METRIC_DEVICE).add(device);
+    long endToEnd = trace.endToEndLatencyMs();
+    if (endToEnd >= 0) window(trace.type, METRIC_END_TO_END).add(endToEnd);
+  }
+
+  public synchronized List<Summary> summaries() {
+    List<Summary> out = new ArrayList<>();
+    for (Map.Entry<String, Window> e : windows.entrySet()) {
+      Window w = e.getValue();
+      if (w.size == 0) continue;
+      int sep = e.getKey().indexOf('|');
+      out.add(new Summary(e.getKey().substring(0, sep), e.getKey().substring(sep + 1), w.sortedCopy()));
+    }
+    return out;
+  }
+
+  /**
+   * Server enqueue time from a pending-command entry: numeric "enqueuedAt"/"timestamp" or the
+   * ISO-8601 "createdAt" the API returns. 0 when absent.
+   */
+  public static long parseEnqueuedAt(JSONObject command) {
+    if (command == null) return 0;
+    long numeric = command.optLong("enqueuedAt", 0);
+    if (numeric <= 0) numeric = command.optLong("timestamp", 0);
+    if (numeric > 0) return numeric;
+    String iso = command.optString("createdAt", null);
+    if (iso == null || iso.isEmpty()) return 0;
+    try {
+      SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+      fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+      Date date = fmt.parse(iso);
+      return date != null ? date.getTime() : 0;
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  private Window window(String type, String metric) {
+    String key = type + "|" + metric;
+    Window w = windows.get(key);
+    if (w == null) {
+      w = new Window();
+      windows.put(key, w);
+    }
+    return w;
+  }
+
+  private static long percentile(long[] sorted, int p) {
+    int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+  }
+}
@@ -0,0 +1,175 @@
+package com.octoclass.mobile;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Fixed-size in-memory ring of structured diagnostic events, enabled in release builds.
+ * Slots are preallocated parallel atomic arrays and writers claim them with a single atomic
+ * increment, so {@link #record} never allocates or locks. Each slot carries a publish sequence
+ * that is cleared before the ordered payload writes and set after them; readers check it before
+ * and after their volatile payload reads, so a dump skips slots that were being overwritten.
+ * Strings are never stored; callers pass {@link #label} hashes, resolved back to text on dump
+ * from the candidate names the caller supplies.
+ */
+public final class DiagnosticRing {
+
+  public static final int EVT_SYNC_START = 1;
+  public static final int EVT_SYNC_DONE = 2;
+  public static final int EVT_SYNC_SKIPPED = 3;
+  public static final int EVT_HTTP_FAILURE = 10;
+  public static final int EVT_BREAKER_OPEN = 11;
+  public static final int EVT_BREAKER_CLOSED = 12;
+  public static final int EVT_COMMAND_FETCHED = 20;
+  public static final int EVT_COMMAND_DONE = 21;
+  public static final int EVT_COMMAND_FAILED = 22;
+  public static final int EVT_DPM_HIDE_FAILED = 30;
+  public static final int EVT_DPM_UNHIDE_FAILED = 31;
+  public static final int EVT_DPM_LOCK_TASK_FAILED = 32;
+  public static final int EVT_PACKAGE_ENFORCED = 33;
+  public static final int EVT_DPM_LOCK_NOW = 34;
+
+  private static final int CAPACITY = 1024;
+  private static final int MASK = CAPACITY - 1;
+
+  private static final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+  private static final AtomicIntegerArray codes = new AtomicIntegerArray(CAPACITY);
+  private static final AtomicLongArray args1 = new AtomicLongArray(CAPACITY);
+  private static final AtomicLongArray args2 = new AtomicLongArray(CAPACITY);
+  private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+  private static final AtomicLong cursor = new AtomicLong();
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) published.set(i, -1);
+  }
+
+  private DiagnosticRing() {}
+
+  public static void record(int code, long arg1, long arg2) {
+    long seq = cursor.getAndIncrement();
+    int slot = (int) (seq & MASK);
+    published.set(slot, -1);
+    times.lazySet(slot, System.currentTimeMillis());
+    codes.lazySet(slot, code);
+    args1.lazySet(slot, arg1);
+    args2.lazySet(slot, arg2);
+    published.set(slot, seq);
+  }
+
+  public static void record(int code) {
+    record(code, 0, 0);
+  }
+
+  /**
+   * Stable numeric id for a string argument (endpoint, package, command type). This is only the
+   * string hash, so it costs nothing on the record path; {@link #dump(Iterable)} maps it back.
+   */
+  public static int label(String value) {
+    return value == null ? 0 : value.hashCode();
+  }
+
+  public static JSONArray dump() {
+    return dump(Collections.<String>emptyList());
+  }
+
+  /**
+   * Snapshot of the ring, oldest first, as a JSON array of {seq, t, code, event, a, b}. Events
+   * whose a is a {@link #label} (see carriesLabel) and matches one of the given names also carry
+   * it as "label"; counts and durations in a are never resolved.
+   */
+  public static JSONArray dump(Iterable<String> names) {
+    Map<Integer, String> labels = new HashMap<>();
+    for (String name : names) {
+      if (name != null) labels.put(label(name), name);
+    }
+    JSONArray out = new JSONArray();
+    long end = cursor.get();
+    long start = Math.max(0, end - CAPACITY);
+    for (long seq = start; seq < end; seq++) {
+      int slot = (int) (seq & MASK);
+      if (published.get(slot) != seq) continue;
+      long t = times.get(slot);
+      int code = codes.get(slot);
+      long a = args1.get(slot);
+      long b = args2.get(slot);
+      if (published.get(slot) != seq) continue;
+      try {
+        JSONObject e = new JSONObject();
+        e.put("seq", seq);
+        e.put("t", t);
+        e.put("code", code);
+        e.put("event", eventName(code));
+        e.put("a", a);
+        e.put("b", b);
+        String label = carriesLabel(code) ? labels.get((int) a) : null;
+        if (label != null) e.put("label", label);
+        out.put(e);
+      } catch (Exception ignored) {}
+    }
+    return out;
+  }
+
+  /** Gzip + base64 of {@link #dump(Iterable)}, for upload through the activity endpoint. */
+  public static String dumpCompressed(Iterable<String> names) throws java.io.IOException {
+    byte[] raw = dump(names).toString().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 4 + 64);
+    try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+      gz.write(raw);
+    }
+    return Base64.encodeToString(bos.toByteArray(), Base64.NO_WRAP);
+  }
+
+  public static long totalRecorded() {
+    return cursor.get();
+  }
+
+  /** Event types whose first argument is a {@link #label} id rather than a number. */
+  private static boolean carriesLabel(int code) {
+    switch (code) {
+      case EVT_HTTP_FAILURE:
+      case EVT_BREAKER_OPEN:
+      case EVT_BREAKER_CLOSED:
+      case EVT_COMMAND_FETCHED:
+      case EVT_COMMAND_DONE:
+      case EVT_COMMAND_FAILED:
+      case EVT_DPM_HIDE_FAILED:
+      case EVT_DPM_UNHIDE_FAILED:
+      case EVT_PACKAGE_ENFORCED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static String eventName(int code) {
+    switch (code) {
+      case EVT_SYNC_START: return "SYNC_START";
+      case EVT_SYNC_DONE: return "SYNC_DONE";
+      case EVT_SYNC_SKIPPED: return "SYNC_SKIPPED";
+      case EVT_HTTP_FAILURE: return "HTTP_FAILURE";
+      case EVT_BREAKER_OPEN: return "BREAKER_OPEN";
+      case EVT_BREAKER_CLOSED: return "BREAKER_CLOSED";
+      case EVT_COMMAND_FETCHED: return "COMMAND_FETCHED";
+      case EVT_COMMAND_DONE: return "COMMAND_DONE";
+      case EVT_COMMAND_FAILED: return "COMMAND_FAILED";
+      case EVT_DPM_HIDE_FAILED: return "DPM_HIDE_FAILED";
+      case EVT_DPM_UNHIDE_FAILED: return "DPM_UNHIDE_FAILED";
+      case EVT_DPM_LOCK_TASK_FAILED: return "DPM_LOCK_TASK_FAILED";
+      case EVT_PACKAGE_ENFORCED: return "PACKAGE_ENFORCED";
+      case EVT_DPM_LOCK_NOW: return "DPM_LOCK_NOW";
+      default: return "UNKNOWN";
+    }
+  }
+}
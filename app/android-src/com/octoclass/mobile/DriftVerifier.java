@@ -0,0 +1,113 @@
+package com.octoclass.mobile;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Low-cost check that DPM state still matches what the sync service believes it applied.
+ * Each cycle it calls isApplicationHidden on a small rotating window of the blocked set (plus any
+ * package whose last setApplicationHidden failed) and re-hides only the entries that drifted,
+ * and compares the lock-task allow-list with a single getLockTaskPackages call. Over
+ * ceil(n / SAMPLE_SIZE) cycles every blocked package is verified once.
+ */
+public class DriftVerifier {
+
+  private static final int SAMPLE_SIZE = 8;
+
+  private final Set<String> suspects = new LinkedHashSet<>();
+  private String[] order = new String[0];
+  private int orderHash;
+  private int cursor;
+
+  private long cycles;
+  private long checked;
+  private long drifted;
+  private long repaired;
+  private long lockTaskChecks;
+  private long lockTaskDrifts;
+
+  /** A package whose last hide call failed or was not confirmed; checked first next cycle. */
+  public synchronized void markSuspect(String pkg) {
+    if (pkg != null) suspects.add(pkg);
+  }
+
+  public synchronized void verify(DevicePolicyManager dpm, ComponentName admin, Set<String> expectedHidden, Set<String> expectedLockTask) {
+    cycles++;
+    int hash = expectedHidden.hashCode();
+    if (hash != orderHash || order.length != expectedHidden.size()) {
+      order = expectedHidden.toArray(new String[0]);
+      Arrays.sort(order);
+      orderHash = hash;
+      cursor = 0;
+    }
+    Set<String> sample = new LinkedHashSet<>();
+    for (String pkg : suspects) {
+      if (expectedHidden.contains(pkg)) sample.add(pkg);
+    }
+    suspects.clear();
+    int n = Math.min(SAMPLE_SIZE, order.length);
+    for (int i = 0; i < n; i++) {
+      sample.add(order[cursor]);
+      cursor = (cursor + 1) % order.length;
+    }
+    for (String pkg : sample) {
+      checked++;
+      try {
+        if (dpm.isApplicationHidden(admin, pkg)) continue;
+        drifted++;
+        if (dpm.setApplicationHidden(admin, pkg, true)) {
+          repaired++;
+        } else {
+          suspects.add(pkg);
+          DiagnosticRing.record(DiagnosticRing.EVT_DPM_HIDE_FAILED, DiagnosticRing.label(pkg), 0);
+        }
+      } catch (Exception ignored) {}
+    }
+    if (expectedLockTask == null || expectedLockTask.isEmpty()) return;
+    try {
+      lockTaskChecks++;
+      String[] actual = dpm.getLockTaskPackages(admin);
+      Set<String> actualSet = actual != null ? new HashSet<>(Arrays.asList(actual)) : new HashSet<String>();
+      if (!actualSet.equals(expectedLockTask)) {
+        lockTaskDrifts++;
+        dpm.setLockTaskPackages(admin, expectedLockTask.toArray(new String[0]));
+      }
+    } catch (Exception e) {
+      DiagnosticRing.record(DiagnosticRing.EVT_DPM_LOCK_TASK_FAILED, expectedLockTask.size(), 0);
+    }
+  }
+
+  public synchronized long getCycles() {
+    return cycles;
+  }
+
+  public synchronized long getChecked() {
+    return checked;
+  }
+
+  public synchronized long getDrifted() {
+    return drifted;
+  }
+
+  public synchronized long getRepaired() {
+    return repaired;
+  }
+
+  public synchronized long getLockTaskChecks() {
+    return lockTaskChecks;
+  }
+
+  public synchronized long getLockTaskDrifts() {
+    return lockTaskDrifts;
+  }
+
+  /** Fraction of sampled hidden-state checks that found drift. */
+  public synchronized double getDriftRate() {
+    return checked == 0 ? 0 : (double) drifted / checked;
+  }
+}
@@ -0,0 +1,140 @@
+package com.octoclass.mobile;
+
+import android.os.SystemClock;
+
+/**
+ * Circuit breaker for one backend endpoint used by MdmSyncService.
+ * CLOSED lets every call through; after consecutive failures it goes OPEN and rejects calls
+ * without touching the network until the cool-down expires. Then it goes HALF_OPEN and lets a
+ * single probe through: success closes it, failure reopens it with a doubled cool-down. Every
+ * gated call ends with {@link #releaseProbe}, so a probe that never recorded an outcome cannot
+ * keep the breaker HALF_OPEN and rejecting forever.
+ */
+public class EndpointCircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final String name;
+  private final int labelId;
+  private final int failureThreshold;
+  private final long baseOpenMs;
+  private final long maxOpenMs;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private long openDurationMs;
+  private boolean probeInFlight;
+  private long rejectedCount;
+  private long lastFailureAt;
+
+  public EndpointCircuitBreaker(String name, int failureThreshold, long baseOpenMs, long maxOpenMs) {
+    this.name = name;
+    this.labelId = DiagnosticRing.label(name);
+    this.failureThreshold = failureThreshold;
+    this.baseOpenMs = baseOpenMs;
+    this.maxOpenMs = maxOpenMs;
+    this.openDurationMs = baseOpenMs;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Returns true if the caller may hit the endpoint now; false means skip the call entirely. */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (SystemClock.elapsedRealtime() - openedAt >= openDurationMs) {
+          state = State.HALF_OPEN;
+          probeInFlight = true;
+          return true;
+        }
+        rejectedCount++;
+        return false;
+      case HALF_OPEN:
+      default:
+        if (!probeInFlight) {
+          probeInFlight = true;
+          return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+  }
+
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) DiagnosticRing.record(DiagnosticRing.EVT_BREAKER_CLOSED, labelId, 0);
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    openDurationMs = baseOpenMs;
+    probeInFlight = false;
+  }
+
+  /**
+   * Ends a gated call; callers invoke it from a finally block. A HALF_OPEN probe that ended
+   * without a recorded outcome (an exception before the response) frees the slot for the next one.
+   */
+  public synchronized void releaseProbe() {
+    if (state == State.HALF_OPEN) probeInFlight = false;
+  }
+
+  public void recordFailure() {
+    DiagnosticRing.record(DiagnosticRing.EVT_HTTP_FAILURE, labelId, -1);
+    fail();
+  }
+
+  /** Records the outcome of a completed HTTP exchange; only 5xx counts against the endpoint. */
+  public void recordResponse(int code) {
+    if (code >= 500) {
+      DiagnosticRing.record(DiagnosticRing.EVT_HTTP_FAILURE, labelId, code);
+      fail();
+    } else {
+      recordSuccess();
+    }
+  }
+
+  private synchronized void fail() {
+    lastFailureAt = System.currentTimeMillis();
+    probeInFlight = false;
+    if (state == State.HALF_OPEN) {
+      open(Math.min(maxOpenMs, openDurationMs * 2));
+      return;
+    }
+    consecutiveFailures++;
+    if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+      open(baseOpenMs);
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  public synchronized long getLastFailureAt() {
+    return lastFailureAt;
+  }
+
+  /** Milliseconds until an OPEN breaker allows its next probe; 0 when not OPEN. */
+  public synchronized long getRetryInMs() {
+    if (state != State.OPEN) return 0;
+    return Math.max(0, openDurationMs - (SystemClock.elapsedRealtime() - openedAt));
+  }
+
+  private void open(long durationMs) {
+    DiagnosticRing.record(DiagnosticRing.EVT_BREAKER_OPEN, labelId, durationMs);
+    state = State.OPEN;
+    openedAt = SystemClock.elapsedRealtime();
+    openDurationMs = durationMs;
+  }
+}
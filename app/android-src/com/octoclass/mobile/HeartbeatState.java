@@ -0,0 +1,69 @@
+package com.octoclass.mobile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Device state last acknowledged by the backend, so the heartbeat carries only the fields that
+ * changed (foreground package, lock-task mode, applied policy version, battery). With nothing
+ * changed the heartbeat is skipped until LIVENESS_INTERVAL_MS has passed, then goes out as a bare
+ * liveness ping. A new service instance starts empty, so its first heartbeat sends the full state.
+ */
+public class HeartbeatState {
+
+  public static final long LIVENESS_INTERVAL_MS = 2 * 60_000L;
+
+  private final JSONObject acknowledged = new JSONObject();
+  private long lastSentAt = -1;
+  private long deltas;
+  private long pings;
+  private long skipped;
+
+  /** Fields of current whose value differs from the last acknowledged state. */
+  public synchronized JSONObject delta(JSONObject current) throws JSONException {
+    JSONObject out = new JSONObject();
+    Iterator<String> keys = current.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      Object value = current.opt(key);
+      if (value == null || JSONObject.NULL.equals(value)) continue;
+      if (!value.equals(acknowledged.opt(key))) out.put(key, value);
+    }
+    return out;
+  }
+
+  /** True when an empty delta should still go out as a liveness ping. */
+  public synchronized boolean livenessDue(long now) {
+    if (lastSentAt >= 0 && now - lastSentAt < LIVENESS_INTERVAL_MS) {
+      skipped++;
+      return false;
+    }
+    return true;
+  }
+
+  /** Records a delivered heartbeat; the delta's fields become the acknowledged state. */
+  public synchronized void acknowledge(JSONObject delta, long now) throws JSONException {
+    Iterator<String> keys = delta.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      acknowledged.put(key, delta.get(key));
+    }
+    lastSentAt = now;
+    if (delta.length() == 0) pings++;
+    else deltas++;
+  }
+
+  public synchronized long getDeltas() {
+    return deltas;
+  }
+
+  public synchronized long getPings() {
+    return pings;
+  }
+
+  public synchronized long getSkipped() {
+    return skipped;
+  }
+}
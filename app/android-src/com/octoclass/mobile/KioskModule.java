@@ -10,11 +10,15 @@ import android.os.Build;
 import android.provider.MediaStore;
 import android.provider.Settings;
 import androidx.annotation.NonNull;
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -60,10 +64,10 @@ public class KioskModule extends ReactContextBaseJavaModule {
       if (promise != null) promise.reject("NOT_DEVICE_OWNER", "App is not Device Owner. Run: adb shell dpm set-device-owner com.octoclass.mobile/.DeviceAdminReceiver");
       return;
     }
-    android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
-    mainHandler.post(() -> {
+    CommandLanes.submitUrgent(() -> {
       try {
         dpm.lockNow();
+        DiagnosticRing.record(DiagnosticRing.EVT_DPM_LOCK_NOW);
         if (promise != null) promise.resolve(true);
       } catch (Exception e) {
         if (promise != null) promise.reject("LOCK_FAILED", e.getMessage());
@@ -255,19 +259,54 @@ public class KioskModule extends ReactContextBaseJavaModule {
     ComponentName admin = getAdminComponent();
     if (dpm == null || admin == null || !dpm.isAdminActive(admin)) return;
     try {
-    Set<String> set = new HashSet<>();
-    set.add(reactContext.getPackageName());
+    List<String> rules = new ArrayList<>();
     for (int i = 0; i < packageNames.size(); i++) {
       String p = packageNames.getString(i);
-      if (p != null && !p.isEmpty()) set.add(p);
+      if (p != null && !p.isEmpty()) rules.add(p);
     }
+    Set<String> set = PackagePolicyMatcher.compile(rules).resolve(reactContext.getPackageManager());
+    set.add(reactContext.getPackageName());
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-      dpm.setLockTaskPackages(admin, set.toArray(new String[0]));
+      LockTaskAllowList allowList = MdmSyncService.getLockTaskAllowList();
+      allowList.setPolicy(set);
+      allowList.apply(dpm, admin);
     }
     } catch (Exception ignored) {
     }
   }
 
+  /** Resolves true if this call is the first to claim the broadcast id (see MdmSyncService.claimBroadcast). */
+  @ReactMethod
+  public void claimBroadcast(double broadcastId, Promise promise) {
+    try {
+      promise.resolve(MdmSyncService.claimBroadcast(reactContext, (long) broadcastId));
+    } catch (Exception e) {
+      promise.reject("BROADCAST_CLAIM_FAILED", e.getMessage());
+    }
+  }
+
+  /** Temporary lock-task grant for a launch, merged with the policy allow-list; expires on its own. */
+  @ReactMethod
+  public void grantLockTaskPackage(String packageName, double minutes, Promise promise) {
+    DevicePolicyManager dpm = getDpm();
+    ComponentName admin = getAdminComponent();
+    if (packageName == null || packageName.isEmpty() || dpm == null || admin == null || !dpm.isAdminActive(admin)
+      || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      promise.resolve(false);
+      return;
+    }
+    try {
+      LockTaskAllowList allowList = MdmSyncService.getLockTaskAllowList();
+      long durationMs = (long) (Math.max(1, minutes) * 60_000L);
+      if (allowList.grant(packageName, android.os.SystemClock.elapsedRealtime() + durationMs)) {
+        allowList.apply(dpm, admin);
+      }
+      promise.resolve(true);
+    } catch (Exception e) {
+      promise.reject("LOCK_TASK_GRANT_FAILED", e.getMessage());
+    }
+  }
+
   @ReactMethod
   public void setBlockedPackages(ReadableArray packageNames) {
     DevicePolicyManager dpm = getDpm();
@@ -276,15 +315,18 @@ public class KioskModule extends ReactContextBaseJavaModule {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
     final String ownPackage = reactContext.getPackageName();
     try {
-      Set<String> newBlocked = new HashSet<>();
+      List<String> rules = new ArrayList<>();
       for (int i = 0; i < packageNames.size(); i++) {
         String pkg = packageNames.getString(i);
-        if (pkg != null && !pkg.isEmpty() && !pkg.equals(ownPackage)) newBlocked.add(pkg);
+        if (pkg != null && !pkg.isEmpty()) rules.add(pkg);
       }
+      Set<String> newBlocked = PackagePolicyMatcher.compile(rules).resolve(reactContext.getPackageManager());
+      newBlocked.remove(ownPackage);
       for (String pkg : lastBlockedPackages) {
         if (!newBlocked.contains(pkg)) {
           try {
             boolean ok = dpm.setApplicationHidden(admin, pkg, false);
+            if (!ok) DiagnosticRing.record(DiagnosticRing.EVT_DPM_UNHIDE_FAILED, DiagnosticRing.label(pkg), 0);
             if (BuildConfig.DEBUG && !ok) {
               android.util.Log.w("KioskModule", "setApplicationHidden(unhide) false for " + pkg);
             }
@@ -299,6 +341,7 @@ public class KioskModule extends ReactContextBaseJavaModule {
           if (BuildConfig.DEBUG) {
             android.util.Log.d("KioskModule", "setBlockedPackages hide " + pkg + " ok=" + ok);
           }
+          if (!ok) DiagnosticRing.record(DiagnosticRing.EVT_DPM_HIDE_FAILED, DiagnosticRing.label(pkg), 0);
           if (!ok && BuildConfig.DEBUG) {
             android.util.Log.w("KioskModule", "setApplicationHidden(hide) false for " + pkg);
           }
@@ -350,6 +393,15 @@ public class KioskModule extends ReactContextBaseJavaModule {
     }
   }
 
+  @ReactMethod
+  public void setRelayMode(String role, String host, double port) {
+    try {
+      MdmSyncService.saveRelayConfig(reactContext.getApplicationContext(), role, host, (int) port);
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("KioskModule", "setRelayMode", e);
+    }
+  }
+
   @ReactMethod
   public void stopMdmSyncService() {
     try {
@@ -359,6 +411,247 @@ public class KioskModule extends ReactContextBaseJavaModule {
     }
   }
 
+  @ReactMethod
+  public void getSyncCircuitState(Promise promise) {
+    try {
+      WritableArray result = Arguments.createArray();
+      for (EndpointCircuitBreaker breaker : MdmSyncService.getCircuitBreakers()) {
+        WritableMap entry = Arguments.createMap();
+        entry.putString("endpoint", breaker.getName());
+        entry.putString("state", breaker.getState().name());
+        entry.putInt("consecutiveFailures", breaker.getConsecutiveFailures());
+        entry.putDouble("rejectedCount", breaker.getRejectedCount());
+        entry.putDouble("lastFailureAt", breaker.getLastFailureAt());
+        entry.putDouble("retryInMs", breaker.getRetryInMs());
+        result.pushMap(entry);
+      }
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("CIRCUIT_STATE_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void getCommandLatencyStats(Promise promise) {
+    try {
+      WritableArray result = Arguments.createArray();
+      for (CommandLatencyStats.Summary summary : MdmSyncService.getCommandLatencyStats().summaries()) {
+        WritableMap entry = Arguments.createMap();
+        entry.putString("type", summary.type);
+        entry.putString("metric", summary.metric);
+        entry.putInt("count", summary.count);
+        entry.putDouble("p50", summary.p50);
+        entry.putDouble("p90", summary.p90);
+        entry.putDouble("p99", summary.p99);
+        entry.putDouble("max", summary.max);
+        result.pushMap(entry);
+      }
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("LATENCY_STATS_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void dumpDiagnostics(Promise promise) {
+    try {
+      promise.resolve(DiagnosticRing.dump(MdmSyncService.diagnosticLabels(reactContext.getPackageManager())).toString());
+    } catch (Exception e) {
+      promise.reject("DIAGNOSTICS_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void setSyncTracingEnabled(boolean enabled) {
+    SyncTracer.setEnabled(enabled);
+  }
+
+  @ReactMethod
+  public void getSyncTrace(Promise promise) {
+    CommandLanes.submitBackground(() -> {
+      try {
+        promise.resolve(SyncTracer.export().toString());
+      } catch (Exception e) {
+        promise.reject("SYNC_TRACE_FAILED", e.getMessage());
+      }
+    });
+  }
+
+  @ReactMethod
+  public void clearSyncTrace() {
+    SyncTracer.clear();
+  }
+
+  @ReactMethod
+  public void getCommandLaneStats(Promise promise) {
+    try {
+      WritableArray result = Arguments.createArray();
+      for (CommandLanes.Lane lane : CommandLanes.lanes()) {
+        WritableMap entry = Arguments.createMap();
+        entry.putString("lane", lane.getName());
+        entry.putInt("depth", lane.getDepth());
+        entry.putInt("maxDepth", lane.getMaxDepth());
+        entry.putDouble("submitted", lane.getSubmitted());
+        entry.putDouble("completed", lane.getCompleted());
+        entry.putDouble("lastWaitMs", lane.getLastWaitMs());
+        entry.putDouble("maxWaitMs", lane.getMaxWaitMs());
+        result.pushMap(entry);
+      }
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("LANE_STATS_FAILED", e.getMessage());
+    }
+  }
+
+  /**
+   * Captures the current activity natively and uploads it to /screenshots/upload-raw.
+   * options: apiUrl, deviceId (required); event, url, tabId, maxWidth, quality, format ("jpeg" | "webp"),
+   * force (upload even if the frame matches the last upload). Resolves {uploaded, reason, width,
+   * height, bytes, distance}; reason is "unchanged" when a near-identical frame was skipped.
+   */
+  @ReactMethod
+  public void captureScreenshot(ReadableMap options, Promise promise) {
+    android.app.Activity activity = getActivity();
+    if (activity == null) {
+      promise.reject("NO_ACTIVITY", "No current activity");
+      return;
+    }
+    if (!options.hasKey("apiUrl") || !options.hasKey("deviceId")) {
+      promise.reject("CAPTURE_FAILED", "apiUrl and deviceId are required");
+      return;
+    }
+    ScreenshotPipeline.Request request = new ScreenshotPipeline.Request();
+    request.apiUrl = options.getString("apiUrl").trim().replaceAll("/$", "");
+    request.deviceId = options.getString("deviceId");
+    if (options.hasKey("event")) request.event = options.getString("event");
+    if (options.hasKey("url")) request.url = options.getString("url");
+    if (options.hasKey("tabId")) request.tabId = options.getString("tabId");
+    if (options.hasKey("maxWidth")) request.maxWidth = options.getInt("maxWidth");
+    if (options.hasKey("quality")) request.quality = options.getInt("quality");
+    if (options.hasKey("format")) request.webp = "webp".equals(options.getString("format"));
+    if (options.hasKey("force")) request.force = options.getBoolean("force");
+    ScreenshotPipeline.get().capture(activity, request, new ScreenshotPipeline.Callback() {
+      @Override
+      public void onResult(ScreenshotPipeline.Result result) {
+        WritableMap map = Arguments.createMap();
+        map.putBoolean("uploaded", result.uploaded);
+        map.putString("reason", result.reason);
+        map.putInt("width", result.width);
+        map.putInt("height", result.height);
+        map.putInt("bytes", result.bytes);
+        map.putInt("distance", result.distance);
+        promise.resolve(map);
+      }
+
+      @Override
+      public void onError(Exception e) {
+        promise.reject("CAPTURE_FAILED", e.getMessage());
+      }
+    });
+  }
+
+  @ReactMethod
+  public void getAppInventory(Promise promise) {
+    CommandLanes.submitBackground(() -> {
+      try {
+        AppInventory inventory = MdmSyncService.getAppInventory();
+        inventory.ensureLoaded(reactContext.getPackageManager());
+        org.json.JSONArray apps = inventory.toJson();
+        WritableArray list = Arguments.createArray();
+        for (int i = 0; i < apps.length(); i++) {
+          org.json.JSONObject app = apps.optJSONObject(i);
+          if (app == null) continue;
+          WritableMap item = Arguments.createMap();
+          item.putString("packageName", app.optString("packageName", ""));
+          item.putString("label", app.optString("label", ""));
+          item.putString("versionName", app.optString("versionName", ""));
+          item.putBoolean("system", app.optBoolean("system", false));
+          item.putBoolean("hidden", app.optBoolean("hidden", false));
+          list.pushMap(item);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putString("hash", inventory.getHash());
+        result.putString("confirmedHash", inventory.getConfirmedHash());
+        result.putArray("apps", list);
+        promise.resolve(result);
+      } catch (Exception e) {
+        promise.reject("APP_INVENTORY_FAILED", e.getMessage());
+      }
+    });
+  }
+
+  @ReactMethod
+  public void getDriftStats(Promise promise) {
+    try {
+      DriftVerifier verifier = MdmSyncService.getDriftVerifier();
+      WritableMap result = Arguments.createMap();
+      result.putDouble("cycles", verifier.getCycles());
+      result.putDouble("checked", verifier.getChecked());
+      result.putDouble("drifted", verifier.getDrifted());
+      result.putDouble("repaired", verifier.getRepaired());
+      result.putDouble("driftRate", verifier.getDriftRate());
+      result.putDouble("lockTaskChecks", verifier.getLockTaskChecks());
+      result.putDouble("lockTaskDrifts", verifier.getLockTaskDrifts());
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("DRIFT_STATS_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void getTransmissionStats(Promise promise) {
+    try {
+      TransmissionScheduler scheduler = MdmSyncService.getTransmissionScheduler();
+      WritableMap result = Arguments.createMap();
+      result.putInt("queued", scheduler.getQueued());
+      result.putDouble("flushes", scheduler.getFlushes());
+      result.putDouble("deferredCycles", scheduler.getDeferredCycles());
+      result.putDouble("dropped", scheduler.getDropped());
+      result.putString("lastReason", scheduler.getLastReason());
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("TRANSMISSION_STATS_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void getHeartbeatStats(Promise promise) {
+    try {
+      HeartbeatState state = MdmSyncService.getHeartbeatState();
+      if (state == null) {
+        promise.resolve(null);
+        return;
+      }
+      WritableMap result = Arguments.createMap();
+      result.putDouble("deltas", state.getDeltas());
+      result.putDouble("pings", state.getPings());
+      result.putDouble("skipped", state.getSkipped());
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("HEARTBEAT_STATS_FAILED", e.getMessage());
+    }
+  }
+
+  @ReactMethod
+  public void getHttpCacheStats(Promise promise) {
+    try {
+      android.net.http.HttpResponseCache cache = MdmSyncService.getHttpCache();
+      if (cache == null) {
+        promise.resolve(null);
+        return;
+      }
+      WritableMap result = Arguments.createMap();
+      result.putInt("requests", cache.getRequestCount());
+      result.putInt("hits", cache.getHitCount());
+      result.putInt("network", cache.getNetworkCount());
+      result.putDouble("size", cache.size());
+      result.putDouble("maxSize", cache.maxSize());
+      promise.resolve(result);
+    } catch (Exception e) {
+      promise.reject("HTTP_CACHE_STATS_FAILED", e.getMessage());
+    }
+  }
+
   @ReactMethod
   public void launchCalculator() {
     android.os.Handler mainHandler = new android.os.Handler(android.os.Looper.getMainLooper());
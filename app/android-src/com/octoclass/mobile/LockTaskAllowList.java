@@ -0,0 +1,129 @@
+package com.octoclass.mobile;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.ComponentName;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single owner of the lock-task allow-list, shared by the sync service and KioskModule.
+ * The applied list is the policy set (allowedApps plus pattern-matched installs) merged with
+ * temporary launch grants that expire on their own. {@link #apply} calls setLockTaskPackages only
+ * when that union differs from what was last applied, so unchanged policy applies and launches of
+ * already-allowed apps cost no DPM call, and several grants made before one apply share a call.
+ */
+public class LockTaskAllowList {
+
+  private final Set<String> policy = new HashSet<>();
+  private final Map<String, Long> grants = new HashMap<>();
+  private final Set<String> applied = new HashSet<>();
+  private boolean initialized;
+  private long applyCalls;
+  private long skippedApplies;
+
+  /** Seeds policy and applied state from the persisted list; ignored once the list holds state. */
+  public synchronized void restore(Set<String> persisted) {
+    if (initialized) return;
+    policy.addAll(persisted);
+    applied.addAll(persisted);
+    initialized = true;
+  }
+
+  /** Replaces the policy set; true if it changed. */
+  public synchronized boolean setPolicy(Set<String> packages) {
+    initialized = true;
+    if (policy.equals(packages)) return false;
+    policy.clear();
+    policy.addAll(packages);
+    return true;
+  }
+
+  public synchronized boolean addToPolicy(String pkg) {
+    initialized = true;
+    return policy.add(pkg);
+  }
+
+  /** Drops a package from the policy set and any grant it holds; true if it was in either. */
+  public synchronized boolean remove(String pkg) {
+    boolean removed = policy.remove(pkg);
+    return grants.remove(pkg) != null || removed;
+  }
+
+  /**
+   * Allows pkg until expiresAt (elapsedRealtime), extending an existing grant. True if the
+   * package was not already allowed, i.e. an apply is needed before it can be launched.
+   */
+  public synchronized boolean grant(String pkg, long expiresAt) {
+    boolean wasAllowed = policy.contains(pkg) || grants.containsKey(pkg);
+    Long current = grants.get(pkg);
+    if (!policy.contains(pkg) && (current == null || current < expiresAt)) grants.put(pkg, expiresAt);
+    return !wasAllowed;
+  }
+
+  /** Drops grants that expired by now; true if any did. */
+  public synchronized boolean pruneExpired(long now) {
+    boolean changed = false;
+    Iterator<Map.Entry<String, Long>> it = grants.entrySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().getValue() <= now) {
+        it.remove();
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  public synchronized boolean contains(String pkg) {
+    return policy.contains(pkg) || grants.containsKey(pkg);
+  }
+
+  public synchronized Set<String> getPolicy() {
+    return new HashSet<>(policy);
+  }
+
+  /** Policy set plus live grants: what the device should currently allow. */
+  public synchronized Set<String> snapshot() {
+    Set<String> out = new HashSet<>(policy);
+    out.addAll(grants.keySet());
+    return out;
+  }
+
+  /** Calls setLockTaskPackages if the allowed set changed since the last apply; true if it did. */
+  public synchronized boolean apply(DevicePolicyManager dpm, ComponentName admin) {
+    Set<String> target = snapshot();
+    if (target.equals(applied)) {
+      skippedApplies++;
+      return false;
+    }
+    long span = SyncTracer.begin("dpm.setLockTaskPackages");
+    try {
+      dpm.setLockTaskPackages(admin, target.toArray(new String[0]));
+      applied.clear();
+      applied.addAll(target);
+      applyCalls++;
+      return true;
+    } catch (Exception e) {
+      DiagnosticRing.record(DiagnosticRing.EVT_DPM_LOCK_TASK_FAILED, target.size(), 0);
+      if (BuildConfig.DEBUG) android.util.Log.w("LockTaskAllowList", "setLockTaskPackages", e);
+      return false;
+    } finally {
+      SyncTracer.end(span, target.size());
+    }
+  }
+
+  public synchronized long getApplyCalls() {
+    return applyCalls;
+  }
+
+  public synchronized long getSkippedApplies() {
+    return skippedApplies;
+  }
+
+  public synchronized int getActiveGrants() {
+    return grants.size();
+  }
+}
@@ -1,25 +1,33 @@
 package com.octoclass.mobile;
 
+import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.app.usage.UsageEvents;
 import android.app.usage.UsageStatsManager;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.media.AudioManager;
+import android.net.http.HttpResponseCache;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Handler;
 import android.provider.Settings;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
@@ -27,16 +35,22 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Foreground service that keeps the process alive and periodically fetches device policies
@@ -52,17 +66,116 @@ public class MdmSyncService extends Service {
   private static final String KEY_LAST_USAGE_END = "last_usage_end";
   private static final String KEY_LAST_FOREGROUND_PKG = "last_foreground_pkg";
   private static final String KEY_ALLOWED_APPS = "allowed_apps";
+  private static final String KEY_BLOCKED_APPS = "blocked_apps";
+  private static final String KEY_BLOCKED_RULES = "blocked_rules";
+  private static final String KEY_ALLOWED_RULES = "allowed_rules";
+  private static final String KEY_POLICY_SCHEDULE = "policy_schedule";
+  private static final String KEY_POLICY_VERSION = "policy_version";
+  private static final String KEY_POLICY_ID = "policy_id";
+  private static final String KEY_GROUP_ID = "group_id";
+  private static final String KEY_LAST_BROADCAST_ID = "last_broadcast_id";
+  private static final String KEY_CLAIMED_BROADCASTS = "claimed_broadcasts";
+  private static final int CLAIMED_BROADCASTS_MAX = 50;
+  private static final String GROUP_ALL = "all";
+  private static final String KEY_RELAY_ROLE = "relay_role";
+  private static final String KEY_RELAY_HOST = "relay_host";
+  private static final String KEY_RELAY_PORT = "relay_port";
+  private static final String KEY_RELAY_KEY = "relay_key";
+  private static final String KEY_RELAY_KEY_REGISTERED = "relay_key_registered";
+  private static final String TRANSMISSION_QUEUE_FILE = "transmission_queue.jsonl";
   private static final String CHANNEL_ID = "mdm_sync_channel";
+  private static final String ACTION_SCHEDULE_TRANSITION = "com.octoclass.mobile.SCHEDULE_TRANSITION";
+  private static final int TRANSITION_REQUEST_CODE = 1;
   private static final int NOTIFICATION_ID = 9001;
   private static final long POLL_INTERVAL_MS = 30_000L;
+  private static final long POLICY_DELTA_RETRY_MS = 30 * 60_000L;
+  private static final long INVENTORY_RETRY_MS = 30 * 60_000L;
+  private static final long GROUP_FEED_RETRY_MS = 30 * 60_000L;
+  private static final long RELAY_KEY_RETRY_MS = 30 * 60_000L;
+  private static final long HTTP_CACHE_BYTES = 8L * 1024 * 1024;
+  private static final long LAUNCH_GRANT_MS = 60 * 60_000L;
   private static final long USAGE_LOOKBACK_MS = 120_000L;
+  private static final long USAGE_SLICE_MS = 15 * 60_000L;
+  private static final int USAGE_MAX_SLICES_PER_CYCLE = 96;
+  private static final int USAGE_MAX_BATCH = 200;
   private static final String ALERT_CHANNEL_ID = "mdm_alert_channel";
   private static final int ALERT_NOTIFICATION_ID = 9002;
+  private static final long COMMAND_TRACE_WAIT_MS = 5_000L;
+  private static final int BREAKER_FAILURE_THRESHOLD = 3;
+  private static final long BREAKER_BASE_OPEN_MS = 60_000L;
+  private static final long BREAKER_MAX_OPEN_MS = 15 * 60_000L;
+  private static final List<String> COMMAND_TYPES = Arrays.asList(
+    "LOCK_SCREEN", "SET_BRIGHTNESS", "VOLUME", "LAUNCH_APP", "ALERT", "UPLOAD_DIAGNOSTICS", "UPLOAD_TRACE");
+
+  private static final EndpointCircuitBreaker POLICY_BREAKER = newBreaker("policy");
+  private static final EndpointCircuitBreaker COMMANDS_BREAKER = newBreaker("commands");
+  private static final EndpointCircuitBreaker ACK_BREAKER = newBreaker("ack");
+  private static final EndpointCircuitBreaker HEARTBEAT_BREAKER = newBreaker("heartbeat");
+  private static final EndpointCircuitBreaker ACTIVITY_BREAKER = newBreaker("activity");
+  private static final EndpointCircuitBreaker USAGE_BREAKER = newBreaker("usage");
+  private static final EndpointCircuitBreaker RELAY_BREAKER = newBreaker("relay");
+  private static final EndpointCircuitBreaker INVENTORY_BREAKER = newBreaker("inventory");
+  private static final EndpointCircuitBreaker BROADCAST_BREAKER = newBreaker("broadcast");
+  private static final CommandLatencyStats COMMAND_LATENCY = new CommandLatencyStats();
+  private static final DriftVerifier DRIFT_VERIFIER = new DriftVerifier();
+  private static final AppInventory APP_INVENTORY = new AppInventory();
+  private static final LockTaskAllowList LOCK_TASK_ALLOW_LIST = new LockTaskAllowList();
+  private static final TransmissionScheduler TRANSMISSION = new TransmissionScheduler();
 
   private final Set<String> lastBlockedPackages = new HashSet<>();
-  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private volatile PackagePolicyMatcher blockedMatcher = PackagePolicyMatcher.EMPTY;
+  private volatile PackagePolicyMatcher allowedMatcher = PackagePolicyMatcher.EMPTY;
+  @Nullable private volatile PackagePolicyMatcher baseBlockedMatcher;
+  @Nullable private volatile PackagePolicyMatcher baseAllowedMatcher;
+  private volatile PolicySchedule schedule = PolicySchedule.EMPTY;
+  private long policyDeltaRetryAt;
+  private long inventoryRetryAt;
+  private long groupFeedRetryAt;
+  private long relayKeyRetryAt;
+  private final HeartbeatState heartbeatState = new HeartbeatState();
+  @Nullable private static volatile HeartbeatState activeHeartbeat;
+  @Nullable private String foregroundPackage;
+  private long foregroundScannedTo;
+  private List<ApplicationInfo> installedApps;
+  private final ClassroomRelay relay = new ClassroomRelay();
   private final Handler mainHandler = new Handler(Looper.getMainLooper());
   private boolean running;
+  private final Set<String> pendingLaunches = new LinkedHashSet<>();
+  private final List<Runnable> pendingLaunchDone = new ArrayList<>();
+
+  /**
+   * Applies every launch grant queued on the main looper in one DPM call, launches in order, then
+   * completes the LAUNCH_APP commands that were waiting on it.
+   */
+  private final Runnable flushLaunches = () -> {
+    applyLockTaskPackages();
+    List<String> launches = new ArrayList<>(pendingLaunches);
+    List<Runnable> done = new ArrayList<>(pendingLaunchDone);
+    pendingLaunches.clear();
+    pendingLaunchDone.clear();
+    for (String pkg : launches) launchPackageFromService(pkg);
+    for (Runnable r : done) r.run();
+  };
+
+  /**
+   * Enforces the cached policy as soon as a package is installed or updated, instead of
+   * waiting for the next poll (which would only re-hide it if the backend list changed),
+   * and updates that one package in the app inventory.
+   */
+  private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      if (intent == null || intent.getData() == null) return;
+      invalidateInstalledApps();
+      final String pkg = intent.getData().getSchemeSpecificPart();
+      if (pkg == null || pkg.isEmpty()) return;
+      boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction());
+      if (!removed || !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+        CommandLanes.submitBackground(() -> APP_INVENTORY.refreshPackage(getPackageManager(), pkg));
+      }
+      if (!removed) enforceCachedPolicyForPackage(pkg);
+    }
+  };
 
   public static void saveConfigAndStart(Context context, String deviceId, String apiUrl) {
     if (context == null || deviceId == null || deviceId.isEmpty() || apiUrl == null || apiUrl.isEmpty()) return;
@@ -81,9 +194,131 @@ public class MdmSyncService extends Service {
     context.stopService(new Intent(context, MdmSyncService.class));
   }
 
+  /**
+   * Sets this device's classroom relay role: "relay" serves peers on the given port, "peer" syncs
+   * through the relay at host:port (falling back to the backend when it is unreachable), "off"
+   * syncs directly. Takes effect on the next poll.
+   */
+  public static void saveRelayConfig(Context context, String role, @Nullable String host, int port) {
+    if (context == null) return;
+    String normalized = ClassroomRelay.ROLE_RELAY.equals(role) || ClassroomRelay.ROLE_PEER.equals(role) ? role : ClassroomRelay.ROLE_OFF;
+    context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+      .edit()
+      .putString(KEY_RELAY_ROLE, normalized)
+      .putString(KEY_RELAY_HOST, host != null ? host.trim() : null)
+      .putInt(KEY_RELAY_PORT, port > 0 ? port : ClassroomRelay.DEFAULT_PORT)
+      .apply();
+  }
+
+  /** Per-endpoint breakers, exposed read-only so KioskModule can report them to JS. */
+  public static List<EndpointCircuitBreaker> getCircuitBreakers() {
+    return Arrays.asList(POLICY_BREAKER, COMMANDS_BREAKER, ACK_BREAKER, HEARTBEAT_BREAKER, ACTIVITY_BREAKER, USAGE_BREAKER, RELAY_BREAKER, INVENTORY_BREAKER, BROADCAST_BREAKER);
+  }
+
+  /**
+   * Names a diagnostic dump can resolve {@link DiagnosticRing#label} hashes against: endpoints,
+   * command types and installed packages. Built only when dumping, never on the record path.
+   */
+  public static List<String> diagnosticLabels(PackageManager pm) {
+    List<String> names = new ArrayList<>(COMMAND_TYPES);
+    for (EndpointCircuitBreaker breaker : getCircuitBreakers()) names.add(breaker.getName());
+    for (ApplicationInfo info : PackagePolicyMatcher.listInstalled(pm)) names.add(info.packageName);
+    return names;
+  }
+
+  /** Rolling per-type command latency percentiles, read by KioskModule. */
+  public static CommandLatencyStats getCommandLatencyStats() {
+    return COMMAND_LATENCY;
+  }
+
+  /** Sampled hidden/lock-task drift counters, read by KioskModule. */
+  public static DriftVerifier getDriftVerifier() {
+    return DRIFT_VERIFIER;
+  }
+
+  /** Owner of the lock-task allow-list; KioskModule applies through it too. */
+  public static LockTaskAllowList getLockTaskAllowList() {
+    return LOCK_TASK_ALLOW_LIST;
+  }
+
+  /** Deferred-upload window state, read by KioskModule. */
+  public static TransmissionScheduler getTransmissionScheduler() {
+    return TRANSMISSION;
+  }
+
+  /** Heartbeat delta counters of the running service instance, or null when none runs; read by KioskModule. */
+  @Nullable
+  public static HeartbeatState getHeartbeatState() {
+    return activeHeartbeat;
+  }
+
+  /** Launcher-app inventory kept current from package broadcasts, read by KioskModule. */
+  public static AppInventory getAppInventory() {
+    return APP_INVENTORY;
+  }
+
+  /**
+   * Marks a broadcast id as executed on this device; true only for the first caller. The JS
+   * socket handler and the group feed both claim before running a broadcast, so whichever sees it
+   * first runs it. The last CLAIMED_BROADCASTS_MAX ids are kept in prefs across restarts.
+   */
+  public static synchronized boolean claimBroadcast(Context context, long broadcastId) {
+    SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    List<String> claimed = new ArrayList<>();
+    try {
+      claimed = toStringList(new JSONArray(prefs.getString(KEY_CLAIMED_BROADCASTS, "[]")));
+    } catch (Exception ignored) {}
+    String id = String.valueOf(broadcastId);
+    if (claimed.contains(id)) return false;
+    claimed.add(id);
+    if (claimed.size() > CLAIMED_BROADCASTS_MAX) claimed = claimed.subList(claimed.size() - CLAIMED_BROADCASTS_MAX, claimed.size());
+    prefs.edit().putString(KEY_CLAIMED_BROADCASTS, new JSONArray(claimed).toString()).apply();
+    return true;
+  }
+
+  /** Response-cache hit/network counters, read by KioskModule; null before the service has started. */
+  @Nullable
+  public static HttpResponseCache getHttpCache() {
+    return HttpResponseCache.getInstalled();
+  }
+
+  private static EndpointCircuitBreaker newBreaker(String name) {
+    return new EndpointCircuitBreaker(name, BREAKER_FAILURE_THRESHOLD, BREAKER_BASE_OPEN_MS, BREAKER_MAX_OPEN_MS);
+  }
+
   @Override
   public void onCreate() {
     super.onCreate();
+    activeHeartbeat = heartbeatState;
+    installHttpCache();
+    SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    synchronized (lastBlockedPackages) {
+      lastBlockedPackages.addAll(readPackageSet(prefs, KEY_BLOCKED_APPS));
+    }
+    LOCK_TASK_ALLOW_LIST.restore(readPackageSet(prefs, KEY_ALLOWED_APPS));
+    TRANSMISSION.restore(new File(getFilesDir(), TRANSMISSION_QUEUE_FILE));
+    if (prefs.contains(KEY_BLOCKED_RULES)) {
+      baseBlockedMatcher = PackagePolicyMatcher.compile(readPackageSet(prefs, KEY_BLOCKED_RULES));
+      blockedMatcher = baseBlockedMatcher;
+    }
+    if (prefs.contains(KEY_ALLOWED_RULES)) {
+      baseAllowedMatcher = PackagePolicyMatcher.compile(readPackageSet(prefs, KEY_ALLOWED_RULES));
+      allowedMatcher = baseAllowedMatcher;
+    }
+    try {
+      schedule = PolicySchedule.parse(new JSONArray(prefs.getString(KEY_POLICY_SCHEDULE, "[]")));
+    } catch (Exception ignored) {}
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addDataScheme("package");
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+      registerReceiver(packageReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+    } else {
+      registerReceiver(packageReceiver, filter);
+    }
   }
 
   @Override
@@ -97,14 +332,34 @@ public class MdmSyncService extends Service {
     } else {
       startForeground(NOTIFICATION_ID, notification);
     }
+    if (running && intent != null && ACTION_SCHEDULE_TRANSITION.equals(intent.getAction())) {
+      final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+      CommandLanes.submitBackground(() -> applyEffectivePolicy(prefs));
+      return START_STICKY;
+    }
     running = true;
     scheduleNextPoll();
+    if (!schedule.isEmpty()) {
+      final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+      CommandLanes.submitBackground(() -> applyEffectivePolicy(prefs));
+    }
     return START_STICKY;
   }
 
   @Override
   public void onDestroy() {
     running = false;
+    if (activeHeartbeat == heartbeatState) activeHeartbeat = null;
+    cancelTransitionAlarm();
+    mainHandler.removeCallbacks(flushLaunches);
+    pendingLaunches.clear();
+    pendingLaunchDone.clear();
+    relay.stop();
+    try {
+      unregisterReceiver(packageReceiver);
+    } catch (Exception ignored) {}
+    HttpResponseCache cache = HttpResponseCache.getInstalled();
+    if (cache != null) cache.flush();
     super.onDestroy();
   }
 
@@ -148,92 +403,618 @@ public class MdmSyncService extends Service {
 
   private void pollAndApply() {
     if (!running) return;
-    executor.execute(() -> {
+    final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    final String deviceId = prefs.getString(KEY_DEVICE_ID, null);
+    final String baseUrl = prefs.getString(KEY_API_URL, null);
+    final String relayRole = prefs.getString(KEY_RELAY_ROLE, ClassroomRelay.ROLE_OFF);
+    if (deviceId != null && baseUrl != null && !ClassroomRelay.ROLE_PEER.equals(relayRole)) {
+      CommandLanes.submitUrgent(() -> fetchAndExecutePendingCommands(baseUrl, deviceId));
+    }
+    CommandLanes.submitBackground(() -> {
+      long cycleStart = SystemClock.elapsedRealtime();
+      long cycleSpan = SyncTracer.begin("sync.cycle");
+      DiagnosticRing.record(DiagnosticRing.EVT_SYNC_START);
       try {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        String deviceId = prefs.getString(KEY_DEVICE_ID, null);
-        String baseUrl = prefs.getString(KEY_API_URL, null);
+        updateRelayServer(prefs, relayRole);
         if (deviceId == null || baseUrl == null) {
-          scheduleNextPoll();
-          return;
-        }
-        String urlStr = baseUrl + "/devices/" + deviceId;
-        HttpURLConnection conn = null;
-        try {
-          URL url = new URL(urlStr);
-          conn = (HttpURLConnection) url.openConnection();
-          conn.setRequestMethod("GET");
-          conn.setConnectTimeout(10000);
-          conn.setReadTimeout(10000);
-          int code = conn.getResponseCode();
-          if (code != 200) {
-            scheduleNextPoll();
-            return;
+          DiagnosticRing.record(DiagnosticRing.EVT_SYNC_SKIPPED);
+        } else if (ClassroomRelay.ROLE_PEER.equals(relayRole) && syncViaRelay(prefs, deviceId, baseUrl)) {
+          sendHeartbeat(prefs, baseUrl, deviceId);
+          flushDeferredUploads(baseUrl, deviceId);
+        } else {
+          if (ClassroomRelay.ROLE_PEER.equals(relayRole)) {
+            CommandLanes.submitUrgent(() -> fetchAndExecutePendingCommands(baseUrl, deviceId));
           }
-          StringBuilder sb = new StringBuilder();
-          try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) sb.append(line);
-          }
-          JSONObject json = new JSONObject(sb.toString());
-          JSONObject policies = json.optJSONObject("policies");
-          if (policies != null) {
-            JSONArray blocked = policies.optJSONArray("blockedApps");
-            if (blocked != null) {
-              Set<String> newBlocked = new HashSet<>();
-              for (int i = 0; i < blocked.length(); i++) {
-                String pkg = blocked.optString(i, null);
-                if (pkg != null && !pkg.isEmpty()) newBlocked.add(pkg);
-              }
-              applyBlockedPackages(newBlocked);
-            }
-            JSONArray allowed = policies.optJSONArray("allowedApps");
-            if (allowed != null) {
-              Set<String> allowedSet = new HashSet<>();
-              allowedSet.add(getPackageName());
-              for (int i = 0; i < allowed.length(); i++) {
-                String pkg = allowed.optString(i, null);
-                if (pkg != null && !pkg.isEmpty()) allowedSet.add(pkg);
-              }
-              applyLockTaskPackages(allowedSet);
-              getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putString(KEY_ALLOWED_APPS, new JSONArray(new ArrayList<>(allowedSet)).toString())
-                .apply();
-            }
-          }
-          fetchAndExecutePendingCommands(baseUrl, deviceId);
-          sendHeartbeat(baseUrl, deviceId);
-          collectAndSendUsageStats(baseUrl, deviceId);
-        } finally {
-          if (conn != null) conn.disconnect();
+          syncDirect(prefs, deviceId, baseUrl);
+          if (ClassroomRelay.ROLE_RELAY.equals(relayRole)) exchangeRelayBatch(prefs, deviceId, baseUrl);
         }
+        long verifySpan = SyncTracer.begin("drift.verify");
+        verifyPolicyState();
+        SyncTracer.end(verifySpan);
       } catch (Exception e) {
         if (BuildConfig.DEBUG) {
           android.util.Log.w("MdmSyncService", "poll error", e);
         }
       }
+      SyncTracer.end(cycleSpan);
+      DiagnosticRing.record(DiagnosticRing.EVT_SYNC_DONE, SystemClock.elapsedRealtime() - cycleStart, 0);
       scheduleNextPoll();
     });
   }
 
+  /**
+   * Sends usage, queued activity entries and the inventory in the network window this poll already
+   * opened, but only when the transmission scheduler says the window is worth it; otherwise they
+   * wait (usage and inventory resume from their own checkpoints, activity stays queued).
+   */
+  private void flushDeferredUploads(String baseUrl, String deviceId) {
+    long now = SystemClock.elapsedRealtime();
+    String reason = TRANSMISSION.flushReason(this, now);
+    if (reason == null) return;
+    long span = SyncTracer.begin("uploads.flush");
+    collectAndSendUsageStats(baseUrl, deviceId);
+    List<TransmissionScheduler.Pending> pending = TRANSMISSION.drain();
+    for (int i = 0; i < pending.size(); i++) {
+      TransmissionScheduler.Pending p = pending.get(i);
+      if (!postActivity(baseUrl, deviceId, p.action, p.type, p.payload, p.occurredAt)) {
+        TRANSMISSION.requeue(pending.subList(i, pending.size()));
+        break;
+      }
+    }
+    syncInventory(baseUrl, deviceId);
+    TRANSMISSION.markFlushed(now, reason);
+    SyncTracer.end(span, pending.size());
+  }
+
+  /**
+   * Platform on-disk HTTP cache (LRU eviction, honours Cache-Control and ETag) for every
+   * HttpURLConnection in the process: per-device GETs revalidate into bodyless 304s, and the
+   * group broadcast feed is reused within its max-age.
+   */
+  private void installHttpCache() {
+    if (HttpResponseCache.getInstalled() != null) return;
+    try {
+      HttpResponseCache.install(new File(getCacheDir(), "http"), HTTP_CACHE_BYTES);
+    } catch (IOException e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "install http cache", e);
+    }
+  }
+
+  /** Keeps the device's class id from a policy response; a missing field leaves the stored one alone. */
+  private void storeGroupId(SharedPreferences prefs, JSONObject json, String field) {
+    if (!json.has(field)) return;
+    String groupId = json.isNull(field) ? null : json.optString(field, "");
+    if (groupId != null && groupId.isEmpty()) groupId = null;
+    String stored = prefs.getString(KEY_GROUP_ID, null);
+    if (groupId == null ? stored == null : groupId.equals(stored)) return;
+    SharedPreferences.Editor editor = prefs.edit();
+    if (groupId == null) editor.remove(KEY_GROUP_ID);
+    else editor.putString(KEY_GROUP_ID, groupId);
+    editor.apply();
+  }
+
+  /**
+   * Reads the class broadcast feed, a URL shared by every device in the group so a proxy or CDN
+   * can answer the whole class with one cached object, and runs broadcasts newer than the last
+   * one seen. The first read only records the newest id, so enrolment does not replay old
+   * broadcasts, and ids the JS side already claimed from the socket are skipped. Backends without
+   * the feed (404) are not asked again for GROUP_FEED_RETRY_MS.
+   */
+  private void syncGroupBroadcasts(SharedPreferences prefs, String deviceId, String baseUrl) {
+    if (SystemClock.elapsedRealtime() < groupFeedRetryAt || !BROADCAST_BREAKER.allowRequest()) return;
+    String groupId = prefs.getString(KEY_GROUP_ID, GROUP_ALL);
+    long span = SyncTracer.begin("http.groupBroadcasts");
+    HttpURLConnection conn = null;
+    try {
+      URL url = new URL(baseUrl + "/devices/groups/" + URLEncoder.encode(groupId, "UTF-8") + "/broadcasts");
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("GET");
+      conn.setUseCaches(true);
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(10000);
+      int code = conn.getResponseCode();
+      BROADCAST_BREAKER.recordResponse(code);
+      if (code == 404) {
+        groupFeedRetryAt = SystemClock.elapsedRealtime() + GROUP_FEED_RETRY_MS;
+        return;
+      }
+      if (code != 200) return;
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) sb.append(line);
+      }
+      JSONArray arr = new JSONObject(sb.toString()).optJSONArray("broadcasts");
+      if (arr == null) return;
+      boolean seeded = prefs.contains(KEY_LAST_BROADCAST_ID);
+      long lastSeen = prefs.getLong(KEY_LAST_BROADCAST_ID, 0);
+      long newest = lastSeen;
+      final List<JSONObject> fresh = new ArrayList<>();
+      for (int i = 0; i < arr.length(); i++) {
+        JSONObject b = arr.optJSONObject(i);
+        long id = b != null ? b.optLong("id", 0) : 0;
+        if (id <= lastSeen) continue;
+        newest = Math.max(newest, id);
+        if (seeded && claimBroadcast(this, id)) fresh.add(b);
+      }
+      if (!seeded || newest != lastSeen) prefs.edit().putLong(KEY_LAST_BROADCAST_ID, newest).apply();
+      if (!fresh.isEmpty()) {
+        CommandLanes.submitUrgent(() -> executePendingCommands(baseUrl, deviceId, fresh, "broadcast", (ids, traces) -> {}));
+      }
+    } catch (IOException e) {
+      BROADCAST_BREAKER.recordFailure();
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "group broadcasts", e);
+    } finally {
+      BROADCAST_BREAKER.releaseProbe();
+      if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span);
+    }
+  }
+
+  private void syncDirect(SharedPreferences prefs, String deviceId, String baseUrl) throws Exception {
+    if (!POLICY_BREAKER.allowRequest()) {
+      DiagnosticRing.record(DiagnosticRing.EVT_SYNC_SKIPPED);
+      return;
+    }
+    try {
+      syncPolicy(prefs, deviceId, baseUrl);
+    } finally {
+      POLICY_BREAKER.releaseProbe();
+    }
+  }
+
+  private void syncPolicy(SharedPreferences prefs, String deviceId, String baseUrl) throws Exception {
+    if (syncPolicyChanges(prefs, deviceId, baseUrl)) {
+      sendHeartbeat(prefs, baseUrl, deviceId);
+      syncGroupBroadcasts(prefs, deviceId, baseUrl);
+      flushDeferredUploads(baseUrl, deviceId);
+      return;
+    }
+    HttpURLConnection conn = null;
+    try {
+      URL url = new URL(baseUrl + "/devices/" + deviceId);
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("GET");
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(10000);
+      int code;
+      long httpSpan = SyncTracer.begin("http.policy");
+      try {
+        code = conn.getResponseCode();
+      } catch (IOException e) {
+        POLICY_BREAKER.recordFailure();
+        throw e;
+      } finally {
+        SyncTracer.end(httpSpan);
+      }
+      POLICY_BREAKER.recordResponse(code);
+      if (code != 200) return;
+      long parseSpan = SyncTracer.begin("json.policy");
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) sb.append(line);
+      }
+      JSONObject json = new JSONObject(sb.toString());
+      SyncTracer.end(parseSpan, sb.length());
+      storeGroupId(prefs, json, "assignedClass");
+      JSONObject policies = json.optJSONObject("policies");
+      if (policies != null) applyPolicies(prefs, policies);
+      sendHeartbeat(prefs, baseUrl, deviceId);
+      syncGroupBroadcasts(prefs, deviceId, baseUrl);
+      flushDeferredUploads(baseUrl, deviceId);
+    } finally {
+      if (conn != null) conn.disconnect();
+    }
+  }
+
+  /**
+   * Asks for the policy patches since the version this device last applied, so payload and DPM
+   * work scale with the edit rather than the list size. Returns true when the policy is current
+   * afterwards (patched, replaced by the snapshot the backend sends for large gaps, or unchanged);
+   * false means the caller should fetch the full device instead. A backend without the endpoint
+   * (404) is not asked again for POLICY_DELTA_RETRY_MS.
+   */
+  private boolean syncPolicyChanges(SharedPreferences prefs, String deviceId, String baseUrl) throws Exception {
+    int version = prefs.getInt(KEY_POLICY_VERSION, -1);
+    if (version < 0 || SystemClock.elapsedRealtime() < policyDeltaRetryAt) return false;
+    HttpURLConnection conn = null;
+    try {
+      String policyId = prefs.getString(KEY_POLICY_ID, null);
+      URL url = new URL(baseUrl + "/devices/" + deviceId + "/policies/changes?since=" + version
+        + (policyId != null ? "&policyId=" + URLEncoder.encode(policyId, "UTF-8") : ""));
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("GET");
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(10000);
+      int code;
+      long httpSpan = SyncTracer.begin("http.policyChanges");
+      try {
+        code = conn.getResponseCode();
+      } catch (IOException e) {
+        POLICY_BREAKER.recordFailure();
+        throw e;
+      } finally {
+        SyncTracer.end(httpSpan);
+      }
+      POLICY_BREAKER.recordResponse(code);
+      if (code == 404) {
+        policyDeltaRetryAt = SystemClock.elapsedRealtime() + POLICY_DELTA_RETRY_MS;
+        return false;
+      }
+      if (code != 200) return false;
+      long parseSpan = SyncTracer.begin("json.policyChanges");
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) sb.append(line);
+      }
+      JSONObject json = new JSONObject(sb.toString());
+      SyncTracer.end(parseSpan, sb.length());
+      storeGroupId(prefs, json, "groupId");
+      JSONObject snapshot = json.optJSONObject("snapshot");
+      if (snapshot != null) {
+        applyPolicies(prefs, snapshot);
+        return true;
+      }
+      int latest = json.optInt("version", -1);
+      JSONArray changes = json.optJSONArray("changes");
+      if (latest < 0 || changes == null) return false;
+      if (changes.length() > 0) applyPolicyChanges(prefs, changes, latest);
+      return true;
+    } finally {
+      if (conn != null) conn.disconnect();
+    }
+  }
+
+  /**
+   * Folds ordered patches ({blockedApps:{add,remove}, allowedApps:{add,remove}, set:{...}}) into the
+   * cached rule lists and applies the result once. Only the schedule is read from set; the other
+   * scalar fields are handled by the JS side.
+   */
+  private void applyPolicyChanges(SharedPreferences prefs, JSONArray changes, int version) throws Exception {
+    JSONArray blocked = new JSONArray(prefs.getString(KEY_BLOCKED_RULES, "[]"));
+    JSONArray allowed = new JSONArray(prefs.getString(KEY_ALLOWED_RULES, "[]"));
+    JSONArray scheduleJson = new JSONArray(schedule.getSource());
+    for (int i = 0; i < changes.length(); i++) {
+      JSONObject change = changes.optJSONObject(i);
+      if (change == null) continue;
+      blocked = patchRules(blocked, change.optJSONObject("blockedApps"));
+      allowed = patchRules(allowed, change.optJSONObject("allowedApps"));
+      JSONObject set = change.optJSONObject("set");
+      JSONArray newSchedule = set != null ? set.optJSONArray("schedule") : null;
+      if (newSchedule != null) scheduleJson = newSchedule;
+    }
+    JSONObject policies = new JSONObject();
+    policies.put("version", version);
+    policies.put("blockedApps", blocked);
+    policies.put("allowedApps", allowed);
+    policies.put("schedule", scheduleJson);
+    applyPolicies(prefs, policies);
+  }
+
+  private static JSONArray patchRules(JSONArray rules, @Nullable JSONObject patch) {
+    if (patch == null) return rules;
+    Set<String> out = new LinkedHashSet<>(toStringList(rules));
+    JSONArray remove = patch.optJSONArray("remove");
+    if (remove != null) out.removeAll(toStringList(remove));
+    JSONArray add = patch.optJSONArray("add");
+    if (add != null) out.addAll(toStringList(add));
+    return new JSONArray(new ArrayList<>(out));
+  }
+
+  private void applyPolicies(SharedPreferences prefs, JSONObject policies) {
+    SharedPreferences.Editor editor = prefs.edit();
+    if (policies.has("version")) editor.putInt(KEY_POLICY_VERSION, policies.optInt("version", -1));
+    String policyId = policies.optString("id", "");
+    if (!policyId.isEmpty()) editor.putString(KEY_POLICY_ID, policyId);
+    JSONArray blocked = policies.optJSONArray("blockedApps");
+    if (blocked != null) {
+      baseBlockedMatcher = PackagePolicyMatcher.compile(toStringList(blocked));
+      editor.putString(KEY_BLOCKED_RULES, blocked.toString());
+    }
+    JSONArray allowed = policies.optJSONArray("allowedApps");
+    if (allowed != null) {
+      baseAllowedMatcher = PackagePolicyMatcher.compile(toStringList(allowed));
+      editor.putString(KEY_ALLOWED_RULES, allowed.toString());
+    }
+    JSONArray scheduleJson = policies.optJSONArray("schedule");
+    String scheduleSource = scheduleJson != null ? scheduleJson.toString() : "[]";
+    if (!scheduleSource.equals(schedule.getSource())) {
+      schedule = PolicySchedule.parse(scheduleJson);
+      editor.putString(KEY_POLICY_SCHEDULE, scheduleSource);
+    }
+    long prefsSpan = SyncTracer.begin("prefs.policy");
+    editor.apply();
+    SyncTracer.end(prefsSpan);
+    applyEffectivePolicy(prefs);
+  }
+
+  /**
+   * Applies the base lists, or the active schedule window's lists in their place, and re-arms the
+   * transition timer. Runs on every poll and at each window boundary; applyBlockedPackages only
+   * touches packages whose state changes, so a transition costs one DPM call per changed package.
+   */
+  private void applyEffectivePolicy(SharedPreferences prefs) {
+    long span = SyncTracer.begin("policy.apply");
+    long now = System.currentTimeMillis();
+    PolicySchedule active = schedule;
+    PolicySchedule.Window window = active.activeAt(now);
+    PackagePolicyMatcher blocked = window != null && window.blocked != null ? window.blocked : baseBlockedMatcher;
+    PackagePolicyMatcher allowed = window != null && window.allowed != null ? window.allowed : baseAllowedMatcher;
+    if (blocked != null) {
+      blockedMatcher = blocked;
+      long resolveSpan = SyncTracer.begin("policy.resolveBlocked");
+      Set<String> newBlocked = resolvePolicy(blocked);
+      SyncTracer.end(resolveSpan, newBlocked.size());
+      newBlocked.remove(getPackageName());
+      applyBlockedPackages(newBlocked);
+    }
+    if (allowed != null) {
+      allowedMatcher = allowed;
+      long resolveSpan = SyncTracer.begin("policy.resolveAllowed");
+      Set<String> allowedSet = resolvePolicy(allowed);
+      SyncTracer.end(resolveSpan, allowedSet.size());
+      allowedSet.add(getPackageName());
+      if (LOCK_TASK_ALLOW_LIST.setPolicy(allowedSet)) {
+        applyLockTaskPackages();
+        persistAllowedPolicy();
+      }
+    }
+    cancelTransitionAlarm();
+    long delay = active.nextTransitionDelayMs(now);
+    if (running && delay > 0) setTransitionAlarm(delay);
+    SyncTracer.end(span);
+  }
+
+  /**
+   * Wakes the service at the next schedule window boundary, even in doze, so the variant that is
+   * then active gets applied. Exact when the app may schedule exact alarms, inexact otherwise;
+   * the re-evaluation on every poll still covers an alarm that is late or never fires.
+   */
+  private void setTransitionAlarm(long delayMs) {
+    AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    if (alarms == null) return;
+    long at = SystemClock.elapsedRealtime() + delayMs;
+    try {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarms.canScheduleExactAlarms()) {
+        alarms.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, transitionIntent());
+      } else {
+        alarms.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, transitionIntent());
+      }
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "setTransitionAlarm", e);
+    }
+  }
+
+  private void cancelTransitionAlarm() {
+    AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+    if (alarms != null) alarms.cancel(transitionIntent());
+  }
+
+  /**
+   * Starts the service as a foreground service on O+ so the alarm is not dropped by background
+   * start limits; onStartCommand promotes it again before handling the transition.
+   */
+  private PendingIntent transitionIntent() {
+    Intent intent = new Intent(this, MdmSyncService.class).setAction(ACTION_SCHEDULE_TRANSITION);
+    int flags = PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      return PendingIntent.getForegroundService(this, TRANSITION_REQUEST_CODE, intent, flags);
+    }
+    return PendingIntent.getService(this, TRANSITION_REQUEST_CODE, intent, flags);
+  }
+
+  /** Starts or stops the local relay server to match the configured role. */
+  private void updateRelayServer(SharedPreferences prefs, String relayRole) {
+    if (ClassroomRelay.ROLE_RELAY.equals(relayRole)) {
+      try {
+        relay.start(prefs.getInt(KEY_RELAY_PORT, ClassroomRelay.DEFAULT_PORT));
+      } catch (IOException e) {
+        if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "relay start", e);
+      }
+    } else if (relay.isRunning()) {
+      relay.stop();
+    }
+  }
+
+  /**
+   * Peer role: gets policies and commands from the classroom relay instead of the backend.
+   * Returns false when this device has no registered relay key, or the relay is unreachable or
+   * not ready, so the caller syncs directly. Acks go through the relay and fall back to the
+   * backend when it does not accept them.
+   */
+  private boolean syncViaRelay(SharedPreferences prefs, String deviceId, String baseUrl) throws Exception {
+    final String host = prefs.getString(KEY_RELAY_HOST, null);
+    final int port = prefs.getInt(KEY_RELAY_PORT, ClassroomRelay.DEFAULT_PORT);
+    if (host == null || host.isEmpty()) return false;
+    final String key = ensureRelayKey(prefs, baseUrl, deviceId);
+    if (key == null) return false;
+    JSONObject request = new JSONObject();
+    request.put("op", "sync");
+    request.put("deviceId", deviceId);
+    request.put("key", key);
+    JSONObject reply = ClassroomRelay.exchange(host, port, request);
+    if (reply == null || !reply.optBoolean("ready", false)) return false;
+    JSONObject policies = reply.optJSONObject("policies");
+    if (policies != null) applyPolicies(prefs, policies);
+    JSONArray arr = reply.optJSONArray("commands");
+    final List<JSONObject> commands = new ArrayList<>();
+    if (arr != null) {
+      for (int i = 0; i < arr.length(); i++) {
+        JSONObject o = arr.optJSONObject(i);
+        if (o != null) commands.add(o);
+      }
+    }
+    if (!commands.isEmpty()) {
+      CommandLanes.submitUrgent(() -> executePendingCommands(baseUrl, deviceId, commands, "relay", (ids, traces) -> {
+        JSONObject ack = new JSONObject();
+        try {
+          ack.put("op", "ack");
+          ack.put("deviceId", deviceId);
+          ack.put("key", key);
+          ack.put("commandIds", new JSONArray(ids));
+        } catch (Exception ignored) {}
+        JSONObject ackReply = ClassroomRelay.exchange(host, port, ack);
+        if (ackReply == null || !ackReply.optBoolean("ok", false)) postAck(baseUrl, deviceId, ids, traces);
+      }));
+    }
+    return true;
+  }
+
+  /**
+   * Relay role: one backend round-trip for every live peer's liveness, acks, policies and commands.
+   * Any failure marks the relay's upstream stale, so peers fall back to syncing directly.
+   */
+  private void exchangeRelayBatch(SharedPreferences prefs, String deviceId, String baseUrl) {
+    String key = ensureRelayKey(prefs, baseUrl, deviceId);
+    JSONObject request = key != null ? relay.buildBatchRequest(deviceId, key) : null;
+    if (request == null || !RELAY_BREAKER.allowRequest()) {
+      relay.markUpstreamFailed();
+      return;
+    }
+    boolean ok = false;
+    long span = SyncTracer.begin("http.relay");
+    HttpURLConnection conn = null;
+    try {
+      URL url = new URL(baseUrl + "/devices/relay/sync");
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("POST");
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(10000);
+      try (OutputStream os = conn.getOutputStream()) {
+        os.write(request.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      }
+      int code = conn.getResponseCode();
+      RELAY_BREAKER.recordResponse(code);
+      if (code != 200) return;
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) sb.append(line);
+      }
+      relay.onBatchResponse(request, new JSONObject(sb.toString()));
+      ok = true;
+    } catch (IOException e) {
+      RELAY_BREAKER.recordFailure();
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "relay batch", e);
+    } finally {
+      RELAY_BREAKER.releaseProbe();
+      if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      if (!ok) relay.markUpstreamFailed();
+      SyncTracer.end(span);
+    }
+  }
+
+  /**
+   * This device's relay key: generated once and registered with PUT /devices/{id}/relay-key, where
+   * the first key wins. Returns null until the backend has accepted it; a refused key (409, e.g.
+   * after a reinstall, until the device is removed in the panel) or a missing route (404) is not
+   * retried for RELAY_KEY_RETRY_MS, and the device keeps syncing directly.
+   */
+  @Nullable
+  private String ensureRelayKey(SharedPreferences prefs, String baseUrl, String deviceId) {
+    String key = prefs.getString(KEY_RELAY_KEY, null);
+    if (key == null) {
+      byte[] bytes = new byte[32];
+      new SecureRandom().nextBytes(bytes);
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) hex.append(String.format("%02x", b));
+      key = hex.toString();
+      prefs.edit().putString(KEY_RELAY_KEY, key).remove(KEY_RELAY_KEY_REGISTERED).apply();
+    }
+    if (prefs.getBoolean(KEY_RELAY_KEY_REGISTERED, false)) return key;
+    if (SystemClock.elapsedRealtime() < relayKeyRetryAt) return null;
+    HttpURLConnection conn = null;
+    try {
+      URL url = new URL(baseUrl + "/devices/" + deviceId + "/relay-key");
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("PUT");
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout(5000);
+      conn.setReadTimeout(5000);
+      try (OutputStream os = conn.getOutputStream()) {
+        os.write(new JSONObject().put("key", key).toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      }
+      int code = conn.getResponseCode();
+      if (code == 200) {
+        prefs.edit().putBoolean(KEY_RELAY_KEY_REGISTERED, true).apply();
+        return key;
+      }
+      if (code == 404 || code == 409) relayKeyRetryAt = SystemClock.elapsedRealtime() + RELAY_KEY_RETRY_MS;
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "relay key", e);
+    } finally {
+      if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+    }
+    return null;
+  }
+
+  private interface AckSink {
+    void ack(List<String> commandIds, List<CommandLatencyStats.Trace> traces);
+  }
+
   private void fetchAndExecutePendingCommands(String baseUrl, String deviceId) {
     List<JSONObject> pending = fetchPendingCommands(baseUrl, deviceId);
     if (pending == null || pending.isEmpty()) return;
-    List<String> ackIds = new ArrayList<>();
+    executePendingCommands(baseUrl, deviceId, pending, "poll", (ids, traces) -> postAck(baseUrl, deviceId, ids, traces));
+  }
+
+  /**
+   * Runs a batch (urgent types inline on the calling urgent-lane task, the rest on the main looper)
+   * and acks it from the urgent lane once the last command completes, or after
+   * COMMAND_TRACE_WAIT_MS if one is still running; no lane thread waits for the batch meanwhile.
+   */
+  private void executePendingCommands(String baseUrl, String deviceId, List<JSONObject> pending, String source, AckSink ackSink) {
+    if (pending.isEmpty()) return;
+    final List<String> ackIds = new ArrayList<>();
+    final List<CommandLatencyStats.Trace> traces = new ArrayList<>();
+    final AtomicBoolean finished = new AtomicBoolean();
+    final Runnable finish = () -> {
+      if (!finished.compareAndSet(false, true)) return;
+      if (!ackIds.isEmpty()) CommandLanes.submitUrgent(() -> ackSink.ack(ackIds, traces));
+    };
+    final AtomicInteger remaining = new AtomicInteger(pending.size());
     for (int i = 0; i < pending.size(); i++) {
       JSONObject c = pending.get(i);
       String id = c.optString("id", null);
       final String type = c.optString("type", "");
       final JSONObject payload = c.optJSONObject("payload") != null ? c.optJSONObject("payload") : new JSONObject();
-      mainHandler.post(() -> executeCommand(type, payload));
-      postActivity(baseUrl, deviceId, "COMMAND_EXECUTED_BACKGROUND", type, payload);
+      final CommandLatencyStats.Trace trace =
+        new CommandLatencyStats.Trace(id, type, source, CommandLatencyStats.parseEnqueuedAt(c));
+      traces.add(trace);
       if (id != null && !id.isEmpty()) ackIds.add(id);
+      final int typeLabel = DiagnosticRing.label(type);
+      DiagnosticRing.record(DiagnosticRing.EVT_COMMAND_FETCHED, typeLabel, 0);
+      Runnable run = () -> {
+        trace.markDequeued();
+        long span = SyncTracer.begin("command.execute");
+        executeCommand(type, payload, () -> {
+          trace.markDone();
+          COMMAND_LATENCY.record(trace);
+          DiagnosticRing.record(DiagnosticRing.EVT_COMMAND_DONE, typeLabel, trace.deviceLatencyMs());
+          if (remaining.decrementAndGet() == 0) finish.run();
+        });
+        SyncTracer.end(span);
+      };
+      if (CommandLanes.isUrgent(type)) {
+        run.run();
+      } else {
+        mainHandler.post(run);
+      }
+      CommandLanes.submitBackground(() -> TRANSMISSION.enqueue("COMMAND_EXECUTED_BACKGROUND", type, payload));
     }
-    if (!ackIds.isEmpty()) postAck(baseUrl, deviceId, ackIds);
+    if (!finished.get()) mainHandler.postDelayed(finish, COMMAND_TRACE_WAIT_MS);
   }
 
   private List<JSONObject> fetchPendingCommands(String baseUrl, String deviceId) {
+    if (!COMMANDS_BREAKER.allowRequest()) return null;
+    long span = SyncTracer.begin("http.commands");
     HttpURLConnection conn = null;
     try {
       URL url = new URL(baseUrl + "/devices/" + deviceId + "/commands/pending");
@@ -241,7 +1022,9 @@ public class MdmSyncService extends Service {
       conn.setRequestMethod("GET");
       conn.setConnectTimeout(8000);
       conn.setReadTimeout(8000);
-      if (conn.getResponseCode() != 200) return null;
+      int code = conn.getResponseCode();
+      COMMANDS_BREAKER.recordResponse(code);
+      if (code != 200) return null;
       StringBuilder sb = new StringBuilder();
       try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
         String line;
@@ -254,20 +1037,35 @@ public class MdmSyncService extends Service {
         if (o != null) list.add(o);
       }
       return list;
+    } catch (IOException e) {
+      COMMANDS_BREAKER.recordFailure();
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "fetch pending commands", e);
+      return null;
     } catch (Exception e) {
       if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "fetch pending commands", e);
       return null;
     } finally {
+      COMMANDS_BREAKER.releaseProbe();
       if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span);
     }
   }
 
-  private void executeCommand(String type, JSONObject payload) {
+  /**
+   * Runs one command and calls onDone exactly once when its work has completed: right away for
+   * direct calls, after the launch for a LAUNCH_APP queued behind a lock-task apply, and after the
+   * background-lane upload for UPLOAD_DIAGNOSTICS/UPLOAD_TRACE, so latency covers the real work.
+   */
+  private void executeCommand(String type, JSONObject payload, Runnable onDone) {
+    boolean deferred = false;
     try {
       if ("LOCK_SCREEN".equals(type)) {
         DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
         ComponentName admin = new ComponentName(this, DeviceAdminReceiver.class);
-        if (dpm != null && admin != null && dpm.isAdminActive(admin)) dpm.lockNow();
+        if (dpm != null && admin != null && dpm.isAdminActive(admin)) {
+          dpm.lockNow();
+          DiagnosticRing.record(DiagnosticRing.EVT_DPM_LOCK_NOW);
+        }
       } else if ("SET_BRIGHTNESS".equals(type)) {
         double level = payload.optDouble("level", 0.8);
         if (Settings.System.canWrite(this)) {
@@ -287,51 +1085,109 @@ public class MdmSyncService extends Service {
       } else if ("LAUNCH_APP".equals(type)) {
         String pkg = payload.optString("packageName", "");
         if (pkg != null && !pkg.isEmpty()) {
-          ensurePackageInLockTaskAndLaunch(pkg);
+          long grantMs = payload.has("grantMinutes") ? Math.max(1, payload.optLong("grantMinutes")) * 60_000L : LAUNCH_GRANT_MS;
+          deferred = ensurePackageInLockTaskAndLaunch(pkg, grantMs, onDone);
         }
       } else if ("ALERT".equals(type)) {
         String message = payload.optString("message", "");
         showAlertNotification(message);
+      } else if ("UPLOAD_DIAGNOSTICS".equals(type)) {
+        CommandLanes.submitBackground(() -> runThen(this::uploadDiagnostics, onDone));
+        deferred = true;
+      } else if ("UPLOAD_TRACE".equals(type)) {
+        if (payload.has("enabled")) {
+          SyncTracer.setEnabled(payload.optBoolean("enabled", false));
+        } else {
+          CommandLanes.submitBackground(() -> runThen(this::uploadTrace, onDone));
+          deferred = true;
+        }
       }
     } catch (Exception e) {
+      DiagnosticRing.record(DiagnosticRing.EVT_COMMAND_FAILED, DiagnosticRing.label(type), 0);
       if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "executeCommand " + type, e);
+    } finally {
+      if (!deferred) onDone.run();
     }
   }
 
-  private void ensurePackageInLockTaskAndLaunch(String pkg) {
-    SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-    Set<String> allowedSet = new HashSet<>();
-    allowedSet.add(getPackageName());
-    String stored = prefs.getString(KEY_ALLOWED_APPS, null);
-    if (stored != null && !stored.isEmpty()) {
-      try {
-        JSONArray arr = new JSONArray(stored);
-        for (int i = 0; i < arr.length(); i++) {
-          String s = arr.optString(i, null);
-          if (s != null && !s.isEmpty()) allowedSet.add(s);
-        }
-      } catch (Exception ignored) {}
+  private static void runThen(Runnable work, Runnable onDone) {
+    try {
+      work.run();
+    } finally {
+      onDone.run();
     }
-    if (!allowedSet.contains(pkg)) {
-      allowedSet.add(pkg);
-      applyLockTaskPackages(allowedSet);
-      try {
-        prefs.edit().putString(KEY_ALLOWED_APPS, new JSONArray(new ArrayList<>(allowedSet)).toString()).apply();
-      } catch (Exception ignored) {}
+  }
+
+  /**
+   * Queues the diagnostic ring, gzipped and base64-encoded, as a DIAGNOSTICS_DUMP activity entry
+   * and asks for it to go out with the next poll.
+   */
+  private void uploadDiagnostics() {
+    try {
+      JSONObject payload = new JSONObject();
+      payload.put("encoding", "gzip+base64");
+      payload.put("recorded", DiagnosticRing.totalRecorded());
+      payload.put("data", DiagnosticRing.dumpCompressed(diagnosticLabels(getPackageManager())));
+      TRANSMISSION.enqueue("DIAGNOSTICS_DUMP", "UPLOAD_DIAGNOSTICS", payload);
+      TRANSMISSION.requestFlush();
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "uploadDiagnostics", e);
+    }
+  }
+
+  /**
+   * Queues the sync trace (Chrome trace-event JSON, gzipped and base64-encoded) as a TRACE_DUMP
+   * activity entry for the next poll. UPLOAD_TRACE with payload {enabled} switches tracing on or
+   * off instead.
+   */
+  private void uploadTrace() {
+    try {
+      JSONObject payload = new JSONObject();
+      payload.put("encoding", "gzip+base64");
+      payload.put("format", "chrome-trace");
+      payload.put("data", SyncTracer.exportCompressed());
+      TRANSMISSION.enqueue("TRACE_DUMP", "UPLOAD_TRACE", payload);
+      TRANSMISSION.requestFlush();
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "uploadTrace", e);
     }
-    launchPackageFromService(pkg);
   }
 
-  private void applyLockTaskPackages(Set<String> packages) {
+  /**
+   * Grants pkg a lock-task slot for grantMs (on top of the policy allow-list) and launches it.
+   * An already-allowed package launches at once (returns false; the caller completes the command);
+   * otherwise the launch is queued behind one apply posted to the main looper, so a batch of
+   * LAUNCH_APP commands costs a single DPM call, and onDone runs after that launch (returns true).
+   */
+  private boolean ensurePackageInLockTaskAndLaunch(String pkg, long grantMs, Runnable onDone) {
+    boolean needsApply = LOCK_TASK_ALLOW_LIST.grant(pkg, SystemClock.elapsedRealtime() + grantMs);
+    if (!needsApply && pendingLaunches.isEmpty()) {
+      launchPackageFromService(pkg);
+      return false;
+    }
+    if (pendingLaunches.isEmpty()) mainHandler.post(flushLaunches);
+    pendingLaunches.remove(pkg);
+    pendingLaunches.add(pkg);
+    pendingLaunchDone.add(onDone);
+    return true;
+  }
+
+  private void applyLockTaskPackages() {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
     DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
     ComponentName admin = new ComponentName(this, DeviceAdminReceiver.class);
     if (dpm == null || admin == null || !dpm.isAdminActive(admin)) return;
-    try {
-      dpm.setLockTaskPackages(admin, packages.toArray(new String[0]));
-    } catch (Exception e) {
-      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "setLockTaskPackages", e);
-    }
+    LOCK_TASK_ALLOW_LIST.apply(dpm, admin);
+  }
+
+  /** Persists the policy part of the allow-list; launch grants are deliberately not restored. */
+  private void persistAllowedPolicy() {
+    long span = SyncTracer.begin("prefs.allowedApps");
+    getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+      .edit()
+      .putString(KEY_ALLOWED_APPS, new JSONArray(new ArrayList<>(LOCK_TASK_ALLOW_LIST.getPolicy())).toString())
+      .apply();
+    SyncTracer.end(span);
   }
 
   private void launchPackageFromService(String packageName) {
@@ -379,7 +1235,9 @@ public class MdmSyncService extends Service {
     if (nm != null) nm.notify(ALERT_NOTIFICATION_ID, builder.build());
   }
 
-  private void postActivity(String baseUrl, String deviceId, String action, String type, JSONObject payload) {
+  private boolean postActivity(String baseUrl, String deviceId, String action, String type, JSONObject payload, long occurredAt) {
+    if (!ACTIVITY_BREAKER.allowRequest()) return false;
+    long span = SyncTracer.begin("http.activity");
     HttpURLConnection conn = null;
     try {
       URL url = new URL(baseUrl + "/devices/" + deviceId + "/activity");
@@ -394,18 +1252,29 @@ public class MdmSyncService extends Service {
       JSONObject details = new JSONObject();
       details.put("type", type);
       details.put("payload", payload != null ? payload : new JSONObject());
+      details.put("occurredAt", occurredAt);
       body.put("details", details);
       try (OutputStream os = conn.getOutputStream()) {
         os.write(body.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
       }
-      conn.getResponseCode();
+      int code = conn.getResponseCode();
+      ACTIVITY_BREAKER.recordResponse(code);
+      return code < 500;
+    } catch (IOException e) {
+      ACTIVITY_BREAKER.recordFailure();
+      return false;
     } catch (Exception ignored) {
+      return true;
     } finally {
+      ACTIVITY_BREAKER.releaseProbe();
       if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span);
     }
   }
 
-  private void postAck(String baseUrl, String deviceId, List<String> commandIds) {
+  private void postAck(String baseUrl, String deviceId, List<String> commandIds, List<CommandLatencyStats.Trace> traces) {
+    if (!ACK_BREAKER.allowRequest()) return;
+    long span = SyncTracer.begin("http.ack");
     HttpURLConnection conn = null;
     try {
       URL url = new URL(baseUrl + "/devices/" + deviceId + "/commands/ack");
@@ -419,22 +1288,35 @@ public class MdmSyncService extends Service {
       JSONArray arr = new JSONArray();
       for (String id : commandIds) arr.put(id);
       body.put("commandIds", arr);
+      JSONArray traceArr = new JSONArray();
+      for (CommandLatencyStats.Trace trace : traces) traceArr.put(trace.toJson());
+      body.put("traces", traceArr);
       try (OutputStream os = conn.getOutputStream()) {
         os.write(body.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
       }
-      conn.getResponseCode();
+      ACK_BREAKER.recordResponse(conn.getResponseCode());
+    } catch (IOException e) {
+      ACK_BREAKER.recordFailure();
     } catch (Exception ignored) {
     } finally {
+      ACK_BREAKER.releaseProbe();
       if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span, commandIds.size());
     }
   }
 
+  /**
+   * Walks the usage window since the last checkpoint in bounded time slices, uploading at most
+   * USAGE_MAX_BATCH events per request and checkpointing after each successful upload, so memory
+   * stays flat after long offline periods and a failure resumes from the last uploaded slice.
+   */
   private void collectAndSendUsageStats(String baseUrl, String deviceId) {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
     SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     long endTime = System.currentTimeMillis();
-    long startTime = prefs.getLong(KEY_LAST_USAGE_END, endTime - USAGE_LOOKBACK_MS);
-    if (endTime - startTime < 10_000) return;
+    long cursor = prefs.getLong(KEY_LAST_USAGE_END, endTime - USAGE_LOOKBACK_MS);
+    if (endTime - cursor < 10_000) return;
+    long span = SyncTracer.begin("usage.collect");
     try {
       UsageStatsManager usm = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
       if (usm == null) return;
@@ -442,41 +1324,70 @@ public class MdmSyncService extends Service {
       List<JSONObject> foregroundEvents = new ArrayList<>();
       List<JSONObject> backgroundEvents = new ArrayList<>();
       String lastPkg = prefs.getString(KEY_LAST_FOREGROUND_PKG, null);
-      UsageEvents usageEvents = usm.queryEvents(startTime, endTime);
-      while (usageEvents.hasNextEvent()) {
-        usageEvents.getNextEvent(event);
-        if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+      int slices = 0;
+      while (cursor < endTime && slices++ < USAGE_MAX_SLICES_PER_CYCLE) {
+        long sliceEnd = Math.min(endTime, cursor + USAGE_SLICE_MS);
+        UsageEvents usageEvents = usm.queryEvents(cursor, sliceEnd);
+        while (usageEvents.hasNextEvent()) {
+          usageEvents.getNextEvent(event);
+          if (event.getEventType() != UsageEvents.Event.MOVE_TO_FOREGROUND) continue;
           String pkg = event.getPackageName();
-          if (pkg != null && !pkg.isEmpty()) {
-            if (lastPkg != null && !lastPkg.equals(pkg)) {
-              JSONObject bg = new JSONObject();
-              bg.put("package", lastPkg);
-              bg.put("timestamp", event.getTimeStamp());
-              backgroundEvents.add(bg);
-            }
-            JSONObject fg = new JSONObject();
-            fg.put("package", pkg);
-            fg.put("timestamp", event.getTimeStamp());
-            foregroundEvents.add(fg);
-            lastPkg = pkg;
+          if (pkg == null || pkg.isEmpty()) continue;
+          if (lastPkg != null && !lastPkg.equals(pkg)) {
+            JSONObject bg = new JSONObject();
+            bg.put("package", lastPkg);
+            bg.put("timestamp", event.getTimeStamp());
+            backgroundEvents.add(bg);
+          }
+          JSONObject fg = new JSONObject();
+          fg.put("package", pkg);
+          fg.put("timestamp", event.getTimeStamp());
+          foregroundEvents.add(fg);
+          lastPkg = pkg;
+          if (foregroundEvents.size() + backgroundEvents.size() >= USAGE_MAX_BATCH) {
+            if (!flushUsageEvents(baseUrl, deviceId, foregroundEvents, backgroundEvents)) return;
+            checkpointUsage(prefs, event.getTimeStamp() + 1, lastPkg);
           }
         }
-      }
-      if (lastPkg != null) prefs.edit().putString(KEY_LAST_FOREGROUND_PKG, lastPkg).apply();
-      prefs.edit().putLong(KEY_LAST_USAGE_END, endTime).apply();
-      if (!foregroundEvents.isEmpty()) {
-        postUsageEvents(baseUrl, deviceId, "USAGE_APP_FOREGROUND", foregroundEvents);
-      }
-      if (!backgroundEvents.isEmpty()) {
-        postUsageEvents(baseUrl, deviceId, "USAGE_APP_BACKGROUND", backgroundEvents);
+        if (!flushUsageEvents(baseUrl, deviceId, foregroundEvents, backgroundEvents)) return;
+        checkpointUsage(prefs, sliceEnd, lastPkg);
+        cursor = sliceEnd;
       }
     } catch (SecurityException ignored) {
     } catch (Exception e) {
       if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "usage stats", e);
+    } finally {
+      SyncTracer.end(span);
+    }
+  }
+
+  /** Uploads and clears the pending batch; false means nothing past the last checkpoint is committed. */
+  private boolean flushUsageEvents(String baseUrl, String deviceId, List<JSONObject> foregroundEvents, List<JSONObject> backgroundEvents) {
+    if (!foregroundEvents.isEmpty()) {
+      if (!postUsageEvents(baseUrl, deviceId, "USAGE_APP_FOREGROUND", foregroundEvents)) return false;
+      foregroundEvents.clear();
+    }
+    if (!backgroundEvents.isEmpty()) {
+      if (!postUsageEvents(baseUrl, deviceId, "USAGE_APP_BACKGROUND", backgroundEvents)) return false;
+      backgroundEvents.clear();
     }
+    return true;
   }
 
-  private void postUsageEvents(String baseUrl, String deviceId, String action, List<JSONObject> events) {
+  private void checkpointUsage(SharedPreferences prefs, long usageEnd, @Nullable String lastPkg) {
+    SharedPreferences.Editor editor = prefs.edit().putLong(KEY_LAST_USAGE_END, usageEnd);
+    if (lastPkg != null) editor.putString(KEY_LAST_FOREGROUND_PKG, lastPkg);
+    editor.apply();
+  }
+
+  /**
+   * True when the batch is done with: accepted, or refused with a client error that resending the
+   * same slice would only repeat (it is dropped so the checkpoint keeps moving). False for network
+   * errors, 5xx, 408 and 429, which leave the checkpoint for the next flush.
+   */
+  private boolean postUsageEvents(String baseUrl, String deviceId, String action, List<JSONObject> events) {
+    if (!USAGE_BREAKER.allowRequest()) return false;
+    long span = SyncTracer.begin("http.usage");
     HttpURLConnection conn = null;
     try {
       URL url = new URL(baseUrl + "/devices/" + deviceId + "/activity");
@@ -496,24 +1407,179 @@ public class MdmSyncService extends Service {
       try (OutputStream os = conn.getOutputStream()) {
         os.write(body.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
       }
-      conn.getResponseCode();
+      int code = conn.getResponseCode();
+      USAGE_BREAKER.recordResponse(code);
+      if (code >= 200 && code < 300) return true;
+      if (code >= 500 || code == 408 || code == 429) return false;
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "usage batch dropped: HTTP " + code + ", " + events.size() + " events");
+      return true;
+    } catch (IOException e) {
+      USAGE_BREAKER.recordFailure();
+      return false;
     } catch (Exception ignored) {
+      return false;
     } finally {
+      USAGE_BREAKER.releaseProbe();
       if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span, events.size());
     }
   }
 
-  private void sendHeartbeat(String baseUrl, String deviceId) {
+  /**
+   * Sends the device-state fields that changed since the last acknowledged heartbeat, or a bare
+   * liveness ping once HeartbeatState.LIVENESS_INTERVAL_MS has passed without a change.
+   */
+  private void sendHeartbeat(SharedPreferences prefs, String baseUrl, String deviceId) {
+    long now = SystemClock.elapsedRealtime();
+    JSONObject delta;
+    try {
+      delta = heartbeatState.delta(collectDeviceState(prefs));
+    } catch (Exception e) {
+      return;
+    }
+    if (delta.length() == 0 && !heartbeatState.livenessDue(now)) return;
+    if (!HEARTBEAT_BREAKER.allowRequest()) return;
+    long span = SyncTracer.begin("http.heartbeat");
     HttpURLConnection conn = null;
     try {
       URL url = new URL(baseUrl + "/devices/" + deviceId + "/heartbeat");
       conn = (HttpURLConnection) url.openConnection();
       conn.setRequestMethod("PUT");
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setDoOutput(true);
       conn.setConnectTimeout(5000);
       conn.setReadTimeout(5000);
-      conn.getResponseCode();
+      JSONObject body = new JSONObject();
+      if (delta.length() > 0) body.put("state", delta);
+      try (OutputStream os = conn.getOutputStream()) {
+        os.write(body.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      }
+      int code = conn.getResponseCode();
+      HEARTBEAT_BREAKER.recordResponse(code);
+      if (code >= 200 && code < 300) heartbeatState.acknowledge(delta, now);
+    } catch (IOException e) {
+      HEARTBEAT_BREAKER.recordFailure();
     } catch (Exception ignored) {
     } finally {
+      HEARTBEAT_BREAKER.releaseProbe();
+      if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+      SyncTracer.end(span);
+    }
+  }
+
+  /** Compact state snapshot for the heartbeat; battery is bucketed to 5% so it rarely changes. */
+  private JSONObject collectDeviceState(SharedPreferences prefs) throws Exception {
+    JSONObject state = new JSONObject();
+    String foreground = currentForegroundPackage(prefs);
+    if (foreground != null) state.put("foregroundApp", foreground);
+    state.put("lockTask", lockTaskState());
+    state.put("policyVersion", prefs.getInt(KEY_POLICY_VERSION, -1));
+    Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (battery != null) {
+      int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+      int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+      if (level >= 0 && scale > 0) state.put("battery", level * 100 / scale / 5 * 5);
+      state.put("charging", battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
+    }
+    return state;
+  }
+
+  /** Latest MOVE_TO_FOREGROUND package; each call only reads usage events since the previous one. */
+  @Nullable
+  private String currentForegroundPackage(SharedPreferences prefs) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return null;
+    long now = System.currentTimeMillis();
+    if (foregroundScannedTo == 0) foregroundPackage = prefs.getString(KEY_LAST_FOREGROUND_PKG, null);
+    long from = foregroundScannedTo > 0 ? foregroundScannedTo : now - USAGE_LOOKBACK_MS;
+    try {
+      UsageStatsManager usm = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
+      if (usm != null) {
+        UsageEvents events = usm.queryEvents(from, now);
+        UsageEvents.Event event = new UsageEvents.Event();
+        while (events.hasNextEvent()) {
+          events.getNextEvent(event);
+          if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND && event.getPackageName() != null) {
+            foregroundPackage = event.getPackageName();
+          }
+        }
+      }
+    } catch (Exception ignored) {}
+    foregroundScannedTo = now;
+    return foregroundPackage;
+  }
+
+  private String lockTaskState() {
+    ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+    if (am == null) return "none";
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return am.isInLockTaskMode() ? "locked" : "none";
+    int mode = am.getLockTaskModeState();
+    if (mode == ActivityManager.LOCK_TASK_MODE_LOCKED) return "locked";
+    if (mode == ActivityManager.LOCK_TASK_MODE_PINNED) return "pinned";
+    return "none";
+  }
+
+  /**
+   * Uploads the inventory hash each cycle; the app list goes out only when the backend's hash
+   * differs, as a delta when the backend still holds our last confirmed upload, else in full.
+   */
+  private void syncInventory(String baseUrl, String deviceId) {
+    if (SystemClock.elapsedRealtime() < inventoryRetryAt) return;
+    long span = SyncTracer.begin("inventory.sync");
+    try {
+      APP_INVENTORY.ensureLoaded(getPackageManager());
+      String hash = APP_INVENTORY.getHash();
+      JSONObject probe = new JSONObject();
+      probe.put("hash", hash);
+      JSONObject reply = putInventory(baseUrl, deviceId, probe);
+      if (reply == null) return;
+      if (reply.optBoolean("match", false)) {
+        APP_INVENTORY.confirm(hash);
+        return;
+      }
+      JSONObject upload = APP_INVENTORY.buildDeltaUpload(reply.optString("hash", null));
+      if (upload == null) upload = APP_INVENTORY.buildFullUpload();
+      reply = putInventory(baseUrl, deviceId, upload);
+      if (reply != null && reply.optBoolean("match", false)) APP_INVENTORY.confirm(upload.getString("hash"));
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "inventory sync", e);
+    } finally {
+      SyncTracer.end(span);
+    }
+  }
+
+  /** PUT /devices/{id}/inventory; returns the reply on 200, null otherwise (404 pauses uploads). */
+  @Nullable
+  private JSONObject putInventory(String baseUrl, String deviceId, JSONObject body) {
+    if (!INVENTORY_BREAKER.allowRequest()) return null;
+    HttpURLConnection conn = null;
+    try {
+      URL url = new URL(baseUrl + "/devices/" + deviceId + "/inventory");
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("PUT");
+      conn.setRequestProperty("Content-Type", "application/json");
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(10000);
+      conn.setDoOutput(true);
+      try (OutputStream os = conn.getOutputStream()) {
+        os.write(body.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+      }
+      int code = conn.getResponseCode();
+      INVENTORY_BREAKER.recordResponse(code);
+      if (code == 404) inventoryRetryAt = SystemClock.elapsedRealtime() + INVENTORY_RETRY_MS;
+      if (code != 200) return null;
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) sb.append(line);
+      }
+      return new JSONObject(sb.toString());
+    } catch (IOException e) {
+      INVENTORY_BREAKER.recordFailure();
+      return null;
+    } catch (Exception e) {
+      return null;
+    } finally {
+      INVENTORY_BREAKER.releaseProbe();
       if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
     }
   }
@@ -526,18 +1592,160 @@ public class MdmSyncService extends Service {
     synchronized (lastBlockedPackages) {
       for (String pkg : lastBlockedPackages) {
         if (!newBlocked.contains(pkg)) {
+          boolean ok = false;
+          long dpmSpan = SyncTracer.begin("dpm.unhide");
           try {
-            dpm.setApplicationHidden(admin, pkg, false);
+            ok = dpm.setApplicationHidden(admin, pkg, false);
           } catch (Exception ignored) {}
+          SyncTracer.end(dpmSpan);
+          if (!ok) DiagnosticRing.record(DiagnosticRing.EVT_DPM_UNHIDE_FAILED, DiagnosticRing.label(pkg), 0);
         }
       }
       for (String pkg : newBlocked) {
+        if (lastBlockedPackages.contains(pkg)) continue;
+        boolean ok = false;
+        long dpmSpan = SyncTracer.begin("dpm.hide");
         try {
-          dpm.setApplicationHidden(admin, pkg, true);
+          ok = dpm.setApplicationHidden(admin, pkg, true);
         } catch (Exception ignored) {}
+        SyncTracer.end(dpmSpan);
+        if (!ok) {
+          DRIFT_VERIFIER.markSuspect(pkg);
+          DiagnosticRing.record(DiagnosticRing.EVT_DPM_HIDE_FAILED, DiagnosticRing.label(pkg), 0);
+        }
       }
       lastBlockedPackages.clear();
       lastBlockedPackages.addAll(newBlocked);
     }
+    getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+      .edit()
+      .putString(KEY_BLOCKED_APPS, new JSONArray(new ArrayList<>(newBlocked)).toString())
+      .apply();
+  }
+
+  /**
+   * Samples a few blocked packages and the lock-task list against DPM and repairs drift.
+   * applyBlockedPackages only hides newly added packages; this is what keeps the rest honest.
+   */
+  private void verifyPolicyState() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+    DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
+    ComponentName admin = new ComponentName(this, DeviceAdminReceiver.class);
+    if (dpm == null || !dpm.isAdminActive(admin)) return;
+    if (LOCK_TASK_ALLOW_LIST.pruneExpired(SystemClock.elapsedRealtime())) LOCK_TASK_ALLOW_LIST.apply(dpm, admin);
+    Set<String> hidden;
+    synchronized (lastBlockedPackages) {
+      hidden = new HashSet<>(lastBlockedPackages);
+    }
+    DRIFT_VERIFIER.verify(dpm, admin, hidden, LOCK_TASK_ALLOW_LIST.snapshot());
+  }
+
+  /**
+   * Checks a freshly installed/updated package against the cached policy (hash lookup or one
+   * trie walk, no network) and hides it and drops it from the lock-task allow-list if policy
+   * blocks it. Packages newly matched by an allowedApps pattern are added to the allow-list.
+   */
+  private void enforceCachedPolicyForPackage(String pkg) {
+    if (pkg.equals(getPackageName())) return;
+    PackagePolicyMatcher blockedRules = blockedMatcher;
+    boolean blocked;
+    synchronized (lastBlockedPackages) {
+      blocked = lastBlockedPackages.contains(pkg);
+    }
+    ApplicationInfo info = null;
+    if (!blocked && (blockedRules.hasPatterns() || allowedMatcher.hasPatterns())) {
+      info = getApplicationInfoOrNull(pkg);
+    }
+    if (!blocked && info != null && blockedRules.matches(info)) {
+      blocked = true;
+      Set<String> snapshot;
+      synchronized (lastBlockedPackages) {
+        lastBlockedPackages.add(pkg);
+        snapshot = new HashSet<>(lastBlockedPackages);
+      }
+      getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putString(KEY_BLOCKED_APPS, new JSONArray(new ArrayList<>(snapshot)).toString())
+        .apply();
+    }
+    if (!blocked) {
+      if (info != null && allowedMatcher.matches(info)) grantPatternAllowedPackage(pkg);
+      return;
+    }
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+    DevicePolicyManager dpm = (DevicePolicyManager) getSystemService(Context.DEVICE_POLICY_SERVICE);
+    ComponentName admin = new ComponentName(this, DeviceAdminReceiver.class);
+    if (dpm == null || !dpm.isAdminActive(admin)) return;
+    try {
+      if (!dpm.isApplicationHidden(admin, pkg)) {
+        boolean ok = dpm.setApplicationHidden(admin, pkg, true);
+        DiagnosticRing.record(ok ? DiagnosticRing.EVT_PACKAGE_ENFORCED : DiagnosticRing.EVT_DPM_HIDE_FAILED, DiagnosticRing.label(pkg), 0);
+      }
+    } catch (Exception e) {
+      if (BuildConfig.DEBUG) android.util.Log.w("MdmSyncService", "enforce hide " + pkg, e);
+    }
+    if (LOCK_TASK_ALLOW_LIST.remove(pkg)) {
+      applyLockTaskPackages();
+      persistAllowedPolicy();
+    }
+  }
+
+  private void grantPatternAllowedPackage(String pkg) {
+    if (!LOCK_TASK_ALLOW_LIST.addToPolicy(pkg)) return;
+    LOCK_TASK_ALLOW_LIST.addToPolicy(getPackageName());
+    applyLockTaskPackages();
+    persistAllowedPolicy();
+  }
+
+  /** Exact rules plus installed packages matched by prefix/category rules. */
+  private Set<String> resolvePolicy(PackagePolicyMatcher matcher) {
+    Set<String> out = new HashSet<>(matcher.getExactPackages());
+    if (!matcher.hasPatterns()) return out;
+    for (ApplicationInfo info : getInstalledApps()) {
+      if (info.packageName != null && matcher.matches(info)) out.add(info.packageName);
+    }
+    return out;
+  }
+
+  /** Installed-package inventory, scanned once and then only after a package broadcast. */
+  private synchronized List<ApplicationInfo> getInstalledApps() {
+    if (installedApps == null) installedApps = PackagePolicyMatcher.listInstalled(getPackageManager());
+    return installedApps;
+  }
+
+  private synchronized void invalidateInstalledApps() {
+    installedApps = null;
+  }
+
+  @Nullable
+  private ApplicationInfo getApplicationInfoOrNull(String pkg) {
+    try {
+      return getPackageManager().getApplicationInfo(pkg, 0);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static List<String> toStringList(JSONArray arr) {
+    List<String> list = new ArrayList<>();
+    for (int i = 0; i < arr.length(); i++) {
+      String s = arr.optString(i, null);
+      if (s != null && !s.isEmpty()) list.add(s);
+    }
+    return list;
+  }
+
+  private static Set<String> readPackageSet(SharedPreferences prefs, String key) {
+    Set<String> set = new HashSet<>();
+    String stored = prefs.getString(key, null);
+    if (stored == null || stored.isEmpty()) return set;
+    try {
+      JSONArray arr = new JSONArray(stored);
+      for (int i = 0; i < arr.length(); i++) {
+        String s = arr.optString(i, null);
+        if (s != null && !s.isEmpty()) set.add(s);
+      }
+    } catch (Exception ignored) {}
+    return set;
   }
 }
@@ -0,0 +1,171 @@
+package com.octoclass.mobile;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled form of a blockedApps/allowedApps rule list.
+ * Supported rules:
+ *   com.example.app      exact package (hash lookup)
+ *   com.supercell.*      every package below the given segments (trie over '.'-separated segments)
+ *   category:game        every app whose ApplicationInfo category matches (game, audio, video, image,
+ *                        social, news, maps, productivity)
+ * Matching a package costs one hash lookup plus at most one trie step per package segment,
+ * independent of how many rules were compiled.
+ */
+public class PackagePolicyMatcher {
+
+  public static final PackagePolicyMatcher EMPTY = compile(Collections.<String>emptyList());
+
+  private static final String CATEGORY_PREFIX = "category:";
+  private static final int MATCH_UNINSTALLED_PACKAGES = 0x00002000;
+
+  private final Set<String> exact = new HashSet<>();
+  private final Node root = new Node();
+  private final Set<Integer> categories = new HashSet<>();
+  private boolean hasPatterns;
+
+  private static final class Node {
+    final Map<String, Node> children = new HashMap<>();
+    boolean wildcard;
+  }
+
+  private PackagePolicyMatcher() {}
+
+  public static PackagePolicyMatcher compile(Collection<String> rules) {
+    PackagePolicyMatcher m = new PackagePolicyMatcher();
+    if (rules == null) return m;
+    for (String raw : rules) {
+      if (raw == null) continue;
+      String rule = raw.trim();
+      if (rule.isEmpty()) continue;
+      if (rule.startsWith(CATEGORY_PREFIX)) {
+        int category = parseCategory(rule.substring(CATEGORY_PREFIX.length()));
+        if (category != ApplicationInfo.CATEGORY_UNDEFINED) {
+          m.categories.add(category);
+          m.hasPatterns = true;
+        }
+      } else if (rule.endsWith(".*") && rule.length() > 2) {
+        Node node = m.root;
+        for (String segment : rule.substring(0, rule.length() - 2).split("\\.")) {
+          if (segment.isEmpty()) continue;
+          Node next = node.children.get(segment);
+          if (next == null) {
+            next = new Node();
+            node.children.put(segment, next);
+          }
+          node = next;
+        }
+        if (node != m.root) {
+          node.wildcard = true;
+          m.hasPatterns = true;
+        }
+      } else if (rule.indexOf('*') < 0) {
+        m.exact.add(rule);
+      }
+    }
+    return m;
+  }
+
+  /** True if any rule needs the installed-package inventory to be resolved (prefix or category). */
+  public boolean hasPatterns() {
+    return hasPatterns;
+  }
+
+  public Set<String> getExactPackages() {
+    return Collections.unmodifiableSet(exact);
+  }
+
+  public boolean isEmpty() {
+    return exact.isEmpty() && !hasPatterns;
+  }
+
+  /** Exact or prefix match only; use {@link #matches(ApplicationInfo)} when the category is known. */
+  public boolean matches(String pkg) {
+    if (pkg == null || pkg.isEmpty()) return false;
+    if (exact.contains(pkg)) return true;
+    if (root.children.isEmpty()) return false;
+    Node node = root;
+    int start = 0;
+    while (start < pkg.length()) {
+      int dot = pkg.indexOf('.', start);
+      int end = dot < 0 ? pkg.length() : dot;
+      node = node.children.get(pkg.substring(start, end));
+      if (node == null) return false;
+      if (node.wildcard && dot >= 0) return true;
+      if (dot < 0) return false;
+      start = dot + 1;
+    }
+    return false;
+  }
+
+  public boolean matches(ApplicationInfo info) {
+    if (info == null) return false;
+    if (matches(info.packageName)) return true;
+    return !categories.isEmpty() && categories.contains(categoryOf(info));
+  }
+
+  /**
+   * Resolves the rules to concrete package names: the exact entries plus every installed
+   * package matched by a prefix/category rule. Only queries PackageManager when patterns exist.
+   */
+  public Set<String> resolve(PackageManager pm) {
+    Set<String> out = new HashSet<>(exact);
+    if (!hasPatterns || pm == null) return out;
+    for (ApplicationInfo info : listInstalled(pm)) {
+      if (info != null && info.packageName != null && matches(info)) out.add(info.packageName);
+    }
+    return out;
+  }
+
+  /** Installed apps including hidden ones, so already-hidden matches are not dropped and unhidden. */
+  public static List<ApplicationInfo> listInstalled(PackageManager pm) {
+    try {
+      List<ApplicationInfo> list = pm.getInstalledApplications(MATCH_UNINSTALLED_PACKAGES);
+      return list != null ? list : Collections.<ApplicationInfo>emptyList();
+    } catch (Exception e) {
+      return Collections.emptyList();
+    }
+  }
+
+  static int categoryOf(ApplicationInfo info) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && info.category != ApplicationInfo.CATEGORY_UNDEFINED) {
+      return info.category;
+    }
+    if ((info.flags & ApplicationInfo.FLAG_IS_GAME) != 0) return ApplicationInfo.CATEGORY_GAME;
+    return ApplicationInfo.CATEGORY_UNDEFINED;
+  }
+
+  private static int parseCategory(String name) {
+    switch (name.trim().toLowerCase(java.util.Locale.ROOT)) {
+      case "game":
+      case "games":
+        return ApplicationInfo.CATEGORY_GAME;
+      case "audio":
+        return ApplicationInfo.CATEGORY_AUDIO;
+      case "video":
+        return ApplicationInfo.CATEGORY_VIDEO;
+      case "image":
+        return ApplicationInfo.CATEGORY_IMAGE;
+      case "social":
+        return ApplicationInfo.CATEGORY_SOCIAL;
+      case "news":
+        return ApplicationInfo.CATEGORY_NEWS;
+      case "maps":
+        return ApplicationInfo.CATEGORY_MAPS;
+      case "productivity":
+        return ApplicationInfo.CATEGORY_PRODUCTIVITY;
+      default:
+        return ApplicationInfo.CATEGORY_UNDEFINED;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.octoclass.mobile;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Weekly schedule of policy variants, evaluated on the device.
+ * policies.schedule is an array of windows, in device-local time (days 0 = Sunday; an end at or
+ * before the start runs past midnight):
+ *   {"days":[1,2,3,4,5],"start":"08:00","end":"08:50","blockedApps":[...],"allowedApps":[...]}
+ * While a window is active its lists replace the base ones; a list it omits keeps the base list.
+ * Windows are compiled once into minute-of-week ranges with their own matchers, so finding the
+ * active variant and the delay to the next transition is a scan over a few ints.
+ */
+public class PolicySchedule {
+
+  public static final PolicySchedule EMPTY = new PolicySchedule(new ArrayList<Window>(), "[]");
+
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+  private static final long MIN_TRANSITION_DELAY_MS = 1000L;
+
+  private final List<Window> windows;
+  private final String source;
+
+  public static final class Window {
+    final int startMinute;
+    final int endMinute;
+    @Nullable public final PackagePolicyMatcher blocked;
+    @Nullable public final PackagePolicyMatcher allowed;
+
+    Window(int startMinute, int endMinute, @Nullable PackagePolicyMatcher blocked, @Nullable PackagePolicyMatcher allowed) {
+      this.startMinute = startMinute;
+      this.endMinute = endMinute;
+      this.blocked = blocked;
+      this.allowed = allowed;
+    }
+
+    boolean contains(int minuteOfWeek) {
+      if (minuteOfWeek >= startMinute && minuteOfWeek < endMinute) return true;
+      int wrapped = minuteOfWeek + MINUTES_PER_WEEK;
+      return wrapped >= startMinute && wrapped < endMinute;
+    }
+  }
+
+  private PolicySchedule(List<Window> windows, String source) {
+    this.windows = windows;
+    this.source = source;
+  }
+
+  /** Compiles policies.schedule; malformed windows are skipped, null or empty gives {@link #EMPTY}. */
+  public static PolicySchedule parse(@Nullable JSONArray schedule) {
+    if (schedule == null || schedule.length() == 0) return EMPTY;
+    List<Window> windows = new ArrayList<>();
+    for (int i = 0; i < schedule.length(); i++) {
+      JSONObject w = schedule.optJSONObject(i);
+      if (w == null) continue;
+      int start = parseTime(w.optString("start", ""));
+      int end = parseTime(w.optString("end", ""));
+      JSONArray days = w.optJSONArray("days");
+      if (start < 0 || end < 0 || days == null) continue;
+      int length = end > start ? end - start : end + MINUTES_PER_DAY - start;
+      PackagePolicyMatcher blocked = compileRules(w.optJSONArray("blockedApps"));
+      PackagePolicyMatcher allowed = compileRules(w.optJSONArray("allowedApps"));
+      for (int d = 0; d < days.length(); d++) {
+        int day = days.optInt(d, -1);
+        if (day < 0 || day > 6) continue;
+        int startMinute = day * MINUTES_PER_DAY + start;
+        windows.add(new Window(startMinute, startMinute + length, blocked, allowed));
+      }
+    }
+    return windows.isEmpty() ? EMPTY : new PolicySchedule(windows, schedule.toString());
+  }
+
+  public boolean isEmpty() {
+    return windows.isEmpty();
+  }
+
+  /** The JSON this schedule was compiled from, so callers can skip recompiling an unchanged one. */
+  public String getSource() {
+    return source;
+  }
+
+  /** Window active at the given wall-clock time (first match wins), or null for the base policy. */
+  @Nullable
+  public Window activeAt(long nowMillis) {
+    if (windows.isEmpty()) return null;
+    int minute = minuteOfWeek(calendarAt(nowMillis));
+    for (Window w : windows) {
+      if (w.contains(minute)) return w;
+    }
+    return null;
+  }
+
+  /**
+   * Milliseconds until the next window start or end, or -1 without a schedule. Computed from
+   * local wall-clock fields, so a DST shift can make it off by the shift; callers re-arm on every
+   * poll, which corrects it.
+   */
+  public long nextTransitionDelayMs(long nowMillis) {
+    if (windows.isEmpty()) return -1;
+    Calendar cal = calendarAt(nowMillis);
+    int minute = minuteOfWeek(cal);
+    long intoMinuteMs = cal.get(Calendar.SECOND) * 1000L + cal.get(Calendar.MILLISECOND);
+    int best = Integer.MAX_VALUE;
+    for (Window w : windows) {
+      best = Math.min(best, minutesUntil(minute, w.startMinute));
+      best = Math.min(best, minutesUntil(minute, w.endMinute));
+    }
+    return Math.max(MIN_TRANSITION_DELAY_MS, best * 60_000L - intoMinuteMs);
+  }
+
+  private static int minutesUntil(int from, int boundary) {
+    int delta = ((boundary - from) % MINUTES_PER_WEEK + MINUTES_PER_WEEK) % MINUTES_PER_WEEK;
+    return delta == 0 ? MINUTES_PER_WEEK : delta;
+  }
+
+  private static Calendar calendarAt(long millis) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(millis);
+    return cal;
+  }
+
+  private static int minuteOfWeek(Calendar cal) {
+    int day = cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY;
+    return day * MINUTES_PER_DAY + cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+  }
+
+  private static int parseTime(String hhmm) {
+    int colon = hhmm.indexOf(':');
+    if (colon <= 0) return -1;
+    try {
+      int h = Integer.parseInt(hhmm.substring(0, colon).trim());
+      int m = Integer.parseInt(hhmm.substring(colon + 1).trim());
+      if (h < 0 || h > 23 || m < 0 || m > 59) return -1;
+      return h * 60 + m;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Nullable
+  private static PackagePolicyMatcher compileRules(@Nullable JSONArray rules) {
+    if (rules == null) return null;
+    List<String> list = new ArrayList<>();
+    for (int i = 0; i < rules.length(); i++) {
+      String rule = rules.optString(i, null);
+      if (rule != null && !rule.isEmpty()) list.add(rule);
+    }
+    return PackagePolicyMatcher.compile(list);
+  }
+}
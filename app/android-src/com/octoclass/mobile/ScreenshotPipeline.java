@@ -0,0 +1,318 @@
+package com.octoclass.mobile;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.PixelCopy;
+import android.view.View;
+import android.view.Window;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+/**
+ * Native capture, downscale, encode and upload path for classroom screenshots.
+ * The window is copied straight into a pooled bitmap that is already at upload size (PixelCopy on
+ * API 26+, a scaled software draw of the decor view otherwise), so no full-resolution frame is
+ * allocated. Hashing, encoding and the upload run on one worker thread that reuses the same encode
+ * buffer for every frame, and the JPEG/WebP bytes go out as a fixed-length raw request body, never
+ * through base64 or the JS heap. A 64-bit difference hash lets non-forced captures skip frames that
+ * are near-identical to the last uploaded one.
+ */
+public final class ScreenshotPipeline {
+
+  public static final int DEFAULT_MAX_WIDTH = 720;
+  public static final int DEFAULT_QUALITY = 50;
+
+  private static final int HASH_COLS = 9;
+  private static final int HASH_ROWS = 8;
+  private static final int SAMPLE_STEP = 2;
+  private static final int SIMILAR_MAX_DISTANCE = 4;
+  private static final long SKIP_MAX_AGE_MS = 10 * 60_000L;
+
+  private static final ScreenshotPipeline INSTANCE = new ScreenshotPipeline();
+
+  private final Handler main = new Handler(Looper.getMainLooper());
+  private final Handler worker;
+  private boolean busy;
+  @Nullable private Activity pendingActivity;
+  @Nullable private Request pendingRequest;
+  @Nullable private Callback pendingCallback;
+  private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(256 * 1024);
+  private final Canvas canvas = new Canvas();
+  private final long[] lumaSums = new long[HASH_COLS * HASH_ROWS];
+  private final int[] lumaCounts = new int[HASH_COLS * HASH_ROWS];
+  private int[] row = new int[0];
+  private Bitmap frame;
+  private long lastHash;
+  private boolean hasLastHash;
+  private long lastUploadAt;
+
+  /** What to capture and where to send it; built by KioskModule from the JS options. */
+  public static final class Request {
+    public String apiUrl;
+    public String deviceId;
+    public String event = "MANUAL";
+    @Nullable public String url;
+    @Nullable public String tabId;
+    public int maxWidth = DEFAULT_MAX_WIDTH;
+    public int quality = DEFAULT_QUALITY;
+    public boolean webp;
+    public boolean force;
+  }
+
+  public static final class Result {
+    public boolean uploaded;
+    public String reason = "";
+    public int width;
+    public int height;
+    public int bytes;
+    public int distance = -1;
+
+    static Result skipped(String reason) {
+      Result r = new Result();
+      r.reason = reason;
+      return r;
+    }
+  }
+
+  public interface Callback {
+    void onResult(Result result);
+    void onError(Exception e);
+  }
+
+  private ScreenshotPipeline() {
+    HandlerThread thread = new HandlerThread("mdm-screenshot", Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+    worker = new Handler(thread.getLooper());
+  }
+
+  public static ScreenshotPipeline get() {
+    return INSTANCE;
+  }
+
+  /**
+   * One capture at a time. A non-forced call made while another is in flight resolves as skipped
+   * "busy"; a forced one is queued and runs when the current capture finishes. Only the latest
+   * forced call is kept, and one it replaces resolves as skipped "superseded".
+   */
+  public void capture(Activity activity, Request request, Callback callback) {
+    boolean run = false;
+    Callback superseded = null;
+    synchronized (this) {
+      if (!busy) {
+        busy = true;
+        run = true;
+      } else if (request.force) {
+        superseded = pendingCallback;
+        pendingActivity = activity;
+        pendingRequest = request;
+        pendingCallback = callback;
+      }
+    }
+    if (run) {
+      start(activity, request, callback);
+    } else if (!request.force) {
+      callback.onResult(Result.skipped("busy"));
+    } else if (superseded != null) {
+      superseded.onResult(Result.skipped("superseded"));
+    }
+  }
+
+  private void start(Activity activity, Request request, Callback callback) {
+    main.post(() -> {
+      try {
+        Window window = activity.getWindow();
+        View decor = window != null ? window.getDecorView() : null;
+        if (decor == null || decor.getWidth() <= 0 || decor.getHeight() <= 0) {
+          finish(callback, Result.skipped("no_window"));
+          return;
+        }
+        float scale = Math.min(1f, (float) Math.max(1, request.maxWidth) / decor.getWidth());
+        Bitmap target = obtainFrame(Math.max(1, Math.round(decor.getWidth() * scale)), Math.max(1, Math.round(decor.getHeight() * scale)));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+          PixelCopy.request(window, target, result -> {
+            if (result == PixelCopy.SUCCESS) {
+              process(target, request, callback);
+            } else {
+              main.post(() -> drawAndProcess(decor, target, scale, request, callback));
+            }
+          }, worker);
+        } else {
+          drawAndProcess(decor, target, scale, request, callback);
+        }
+      } catch (Exception e) {
+        fail(callback, e);
+      }
+    });
+  }
+
+  private Bitmap obtainFrame(int width, int height) {
+    if (frame == null || frame.isRecycled() || frame.getWidth() != width || frame.getHeight() != height) {
+      if (frame != null && !frame.isRecycled()) frame.recycle();
+      frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    return frame;
+  }
+
+  private void drawAndProcess(View decor, Bitmap target, float scale, Request request, Callback callback) {
+    try {
+      canvas.setBitmap(target);
+      canvas.save();
+      canvas.scale(scale, scale);
+      decor.draw(canvas);
+      canvas.restore();
+      canvas.setBitmap(null);
+      worker.post(() -> process(target, request, callback));
+    } catch (Exception e) {
+      fail(callback, e);
+    }
+  }
+
+  private void process(Bitmap target, Request request, Callback callback) {
+    try {
+      long hash = differenceHash(target);
+      int distance = hasLastHash ? Long.bitCount(hash ^ lastHash) : 64;
+      long now = SystemClock.elapsedRealtime();
+      if (!request.force && hasLastHash && distance <= SIMILAR_MAX_DISTANCE && now - lastUploadAt < SKIP_MAX_AGE_MS) {
+        Result r = Result.skipped("unchanged");
+        r.distance = distance;
+        r.width = target.getWidth();
+        r.height = target.getHeight();
+        finish(callback, r);
+        return;
+      }
+      encoded.reset();
+      if (!target.compress(compressFormat(request.webp), Math.max(1, Math.min(100, request.quality)), encoded)) {
+        finish(callback, Result.skipped("encode_failed"));
+        return;
+      }
+      int code = upload(request, request.webp ? "image/webp" : "image/jpeg");
+      Result r = new Result();
+      r.width = target.getWidth();
+      r.height = target.getHeight();
+      r.bytes = encoded.size();
+      r.distance = distance;
+      if (code >= 200 && code < 300) {
+        r.uploaded = true;
+        lastHash = hash;
+        hasLastHash = true;
+        lastUploadAt = now;
+      } else {
+        r.reason = "http_" + code;
+      }
+      finish(callback, r);
+    } catch (Exception e) {
+      fail(callback, e);
+    }
+  }
+
+  /**
+   * dHash: mean luma over a 9x8 grid (sampling every other pixel), one bit per horizontal
+   * neighbour comparison. Reads pixels a row at a time into a reused buffer.
+   */
+  private long differenceHash(Bitmap bitmap) {
+    int w = bitmap.getWidth();
+    int h = bitmap.getHeight();
+    if (row.length < w) row = new int[w];
+    Arrays.fill(lumaSums, 0);
+    Arrays.fill(lumaCounts, 0);
+    for (int y = 0; y < h; y += SAMPLE_STEP) {
+      bitmap.getPixels(row, 0, w, 0, y, w, 1);
+      int base = (y * HASH_ROWS / h) * HASH_COLS;
+      for (int x = 0; x < w; x += SAMPLE_STEP) {
+        int p = row[x];
+        int luma = (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8;
+        int cell = base + x * HASH_COLS / w;
+        lumaSums[cell] += luma;
+        lumaCounts[cell]++;
+      }
+    }
+    long hash = 0;
+    for (int r = 0; r < HASH_ROWS; r++) {
+      for (int c = 0; c < HASH_COLS - 1; c++) {
+        hash <<= 1;
+        if (mean(r * HASH_COLS + c) > mean(r * HASH_COLS + c + 1)) hash |= 1;
+      }
+    }
+    return hash;
+  }
+
+  private long mean(int cell) {
+    return lumaCounts[cell] == 0 ? 0 : lumaSums[cell] / lumaCounts[cell];
+  }
+
+  private int upload(Request request, String mimeType) throws IOException {
+    StringBuilder target = new StringBuilder(request.apiUrl)
+      .append("/screenshots/upload-raw?deviceId=").append(encode(request.deviceId))
+      .append("&event=").append(encode(request.event))
+      .append("&timestamp=").append(System.currentTimeMillis());
+    if (request.url != null) target.append("&url=").append(encode(request.url));
+    if (request.tabId != null) target.append("&tabId=").append(encode(request.tabId));
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection) new URL(target.toString()).openConnection();
+      conn.setRequestMethod("POST");
+      conn.setRequestProperty("Content-Type", mimeType);
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(15000);
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(encoded.size());
+      try (OutputStream os = conn.getOutputStream()) {
+        encoded.writeTo(os);
+      }
+      return conn.getResponseCode();
+    } finally {
+      if (conn != null) try { conn.disconnect(); } catch (Exception ignored) {}
+    }
+  }
+
+  private static String encode(String value) throws IOException {
+    return URLEncoder.encode(value != null ? value : "", "UTF-8");
+  }
+
+  @SuppressWarnings("deprecation")
+  private static Bitmap.CompressFormat compressFormat(boolean webp) {
+    if (!webp) return Bitmap.CompressFormat.JPEG;
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+  }
+
+  private void finish(Callback callback, Result result) {
+    startPending();
+    callback.onResult(result);
+  }
+
+  private void fail(Callback callback, Exception e) {
+    if (BuildConfig.DEBUG) android.util.Log.w("ScreenshotPipeline", "capture", e);
+    startPending();
+    callback.onError(e);
+  }
+
+  private void startPending() {
+    Activity activity;
+    Request request;
+    Callback callback;
+    synchronized (this) {
+      activity = pendingActivity;
+      request = pendingRequest;
+      callback = pendingCallback;
+      pendingActivity = null;
+      pendingRequest = null;
+      pendingCallback = null;
+      busy = callback != null;
+    }
+    if (callback != null) start(activity, request, callback);
+  }
+}
@@ -0,0 +1,148 @@
+package com.octoclass.mobile;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opt-in span tracer for sync cycles, exported as Chrome trace-event JSON (chrome://tracing,
+ * ui.perfetto.dev). Spans are complete ("X") events with elapsedRealtimeNanos timestamps in a
+ * preallocated ring; nesting comes from the timestamps per thread, so begin/end only write array
+ * slots. When tracing is off, {@link #begin} is one volatile read returning -1 and {@link #end}
+ * returns immediately. Names must be constants: only the reference is stored.
+ */
+public final class SyncTracer {
+
+  private static final int CAPACITY = 4096;
+  private static final int MASK = CAPACITY - 1;
+
+  private static final String[] names = new String[CAPACITY];
+  private static final String[] threadNames = new String[CAPACITY];
+  private static final long[] threadIds = new long[CAPACITY];
+  private static final long[] startNs = new long[CAPACITY];
+  private static final long[] durationNs = new long[CAPACITY];
+  private static final long[] values = new long[CAPACITY];
+  private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+  private static final AtomicLong cursor = new AtomicLong();
+  private static volatile boolean enabled;
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) published.set(i, -1);
+  }
+
+  private SyncTracer() {}
+
+  public static void setEnabled(boolean on) {
+    enabled = on;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Opens a span and returns its token, or -1 when tracing is off. */
+  public static long begin(String name) {
+    if (!enabled) return -1;
+    long seq = cursor.getAndIncrement();
+    int slot = (int) (seq & MASK);
+    published.set(slot, -1);
+    Thread t = Thread.currentThread();
+    names[slot] = name;
+    threadNames[slot] = t.getName();
+    threadIds[slot] = t.getId();
+    durationNs[slot] = -1;
+    values[slot] = Long.MIN_VALUE;
+    startNs[slot] = SystemClock.elapsedRealtimeNanos();
+    published.set(slot, seq);
+    return seq;
+  }
+
+  public static void end(long token) {
+    if (token < 0) return;
+    int slot = (int) (token & MASK);
+    if (published.get(slot) != token) return;
+    durationNs[slot] = SystemClock.elapsedRealtimeNanos() - startNs[slot];
+  }
+
+  /** Closes a span with one numeric argument (HTTP status, package count, ...). */
+  public static void end(long token, long value) {
+    if (token < 0) return;
+    int slot = (int) (token & MASK);
+    if (published.get(slot) != token) return;
+    values[slot] = value;
+    durationNs[slot] = SystemClock.elapsedRealtimeNanos() - startNs[slot];
+  }
+
+  public static void clear() {
+    for (int i = 0; i < CAPACITY; i++) published.set(i, -1);
+  }
+
+  /**
+   * {traceEvents, displayTimeUnit, otherData} with every closed span still in the ring, oldest
+   * first, plus thread_name metadata so lanes show up by name.
+   */
+  public static JSONObject export() throws Exception {
+    JSONArray events = new JSONArray();
+    int pid = Process.myPid();
+    Map<Long, String> threads = new HashMap<>();
+    long end = cursor.get();
+    long start = Math.max(0, end - CAPACITY);
+    for (long seq = start; seq < end; seq++) {
+      int slot = (int) (seq & MASK);
+      if (published.get(slot) != seq) continue;
+      String name = names[slot];
+      String threadName = threadNames[slot];
+      long tid = threadIds[slot];
+      long ts = startNs[slot];
+      long dur = durationNs[slot];
+      long value = values[slot];
+      if (published.get(slot) != seq || dur < 0) continue;
+      JSONObject e = new JSONObject();
+      e.put("name", name);
+      e.put("cat", "sync");
+      e.put("ph", "X");
+      e.put("ts", ts / 1000.0);
+      e.put("dur", dur / 1000.0);
+      e.put("pid", pid);
+      e.put("tid", tid);
+      if (value != Long.MIN_VALUE) e.put("args", new JSONObject().put("value", value));
+      events.put(e);
+      threads.put(tid, threadName);
+    }
+    for (Map.Entry<Long, String> t : threads.entrySet()) {
+      JSONObject meta = new JSONObject();
+      meta.put("name", "thread_name");
+      meta.put("ph", "M");
+      meta.put("pid", pid);
+      meta.put("tid", t.getKey());
+      meta.put("args", new JSONObject().put("name", t.getValue()));
+      events.put(meta);
+    }
+    JSONObject out = new JSONObject();
+    out.put("traceEvents", events);
+    out.put("displayTimeUnit", "ms");
+    out.put("otherData", new JSONObject().put("recorded", end).put("enabled", enabled));
+    return out;
+  }
+
+  /** Gzip + base64 of {@link #export()}, for upload through the activity endpoint. */
+  public static String exportCompressed() throws Exception {
+    byte[] raw = export().toString().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.length / 4 + 64);
+    try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+      gz.write(raw);
+    }
+    return Base64.encodeToString(bos.toByteArray(), Base64.NO_WRAP);
+  }
+}
@@ -0,0 +1,342 @@
+package com.octoclass.mobile;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batching window for non-urgent uploads (usage, activity entries, inventory, diagnostics).
+ * The sync service asks {@link #flushReason} once per poll, after the policy request has already
+ * brought the radio up; deferred traffic goes out in that window only while charging, on an
+ * unmetered network, when the activity backlog is large, when a dump was explicitly requested, or
+ * once MAX_DEFER_MS has passed since the last flush. Commands, acks and policy keep their own path.
+ * Entries are journaled so a killed process resends them after restart instead of losing audit
+ * entries and dumps: each enqueue appends one line (large payloads such as dumps go to their own
+ * file and the line only references it), and the journal is compacted to the remaining queue when
+ * a flush ends. Entries handed to an upload stay in the journal until then.
+ */
+public class TransmissionScheduler {
+
+  public static final long MAX_DEFER_MS = 15 * 60_000L;
+  private static final int BACKLOG_FLUSH_SIZE = 50;
+  private static final int QUEUE_CAPACITY = 200;
+  private static final int INLINE_PAYLOAD_MAX = 8 * 1024;
+
+  /** One activity entry waiting for the next window. */
+  public static final class Pending {
+    public final String action;
+    public final String type;
+    public final JSONObject payload;
+    public final long occurredAt;
+    final long id;
+
+    Pending(long id, String action, String type, JSONObject payload, long occurredAt) {
+      this.id = id;
+      this.action = action;
+      this.type = type;
+      this.payload = payload;
+      this.occurredAt = occurredAt;
+    }
+  }
+
+  private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+  private final Object fileLock = new Object();
+  private final Set<Long> externalPayloads = new HashSet<>();
+  @Nullable private File store;
+  @Nullable private File payloadDir;
+  private long nextId = System.currentTimeMillis();
+  private long lastFlushAt = -1;
+  private boolean flushRequested;
+  private long flushes;
+  private long deferredCycles;
+  private long dropped;
+  @Nullable private String lastReason;
+
+  /**
+   * Loads entries journaled by a previous process from file (ahead of anything queued since) and
+   * keeps journaling there; later calls are no-ops.
+   */
+  public void restore(File file) {
+    List<Pending> restored = new ArrayList<>();
+    Set<Long> seen = new HashSet<>();
+    File dir = new File(file.getPath() + ".d");
+    long maxId = -1;
+    synchronized (fileLock) {
+      synchronized (this) {
+        if (store != null) return;
+      }
+      if (file.exists()) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = in.readLine()) != null) {
+            JSONObject o = parseLine(line);
+            Pending p = o != null ? fromJournal(o, dir) : null;
+            if (p == null || !seen.add(p.id)) continue;
+            if (o.has("payloadFile")) externalPayloads.add(p.id);
+            restored.add(p);
+            maxId = Math.max(maxId, p.id);
+          }
+        } catch (Exception e) {
+          if (BuildConfig.DEBUG) android.util.Log.w("TransmissionScheduler", "restore", e);
+        }
+      }
+      synchronized (this) {
+        store = file;
+        payloadDir = dir;
+        if (nextId <= maxId) nextId = maxId + 1;
+        while (restored.size() > QUEUE_CAPACITY) {
+          restored.remove(0);
+          dropped++;
+        }
+        requeueLocked(restored);
+      }
+    }
+  }
+
+  /** Queues an activity entry, dropping the oldest one past QUEUE_CAPACITY, and journals it. */
+  public void enqueue(String action, String type, JSONObject payload) {
+    Pending p;
+    synchronized (this) {
+      if (queue.size() >= QUEUE_CAPACITY) {
+        queue.pollFirst();
+        dropped++;
+      }
+      p = new Pending(nextId++, action, type, payload != null ? payload : new JSONObject(), System.currentTimeMillis());
+      queue.addLast(p);
+    }
+    append(p);
+  }
+
+  /** Makes the next poll flush regardless of power and network state (explicit dump requests). */
+  public synchronized void requestFlush() {
+    flushRequested = true;
+  }
+
+  /** Why deferred traffic should go out now, or null to keep holding it. */
+  @Nullable
+  public synchronized String flushReason(Context context, long now) {
+    if (!isConnected(context)) return null;
+    if (flushRequested) return "requested";
+    if (lastFlushAt < 0 || now - lastFlushAt >= MAX_DEFER_MS) return "max_delay";
+    if (isCharging(context)) return "charging";
+    if (!isMetered(context)) return "unmetered";
+    if (queue.size() >= BACKLOG_FLUSH_SIZE) return "backlog";
+    deferredCycles++;
+    return null;
+  }
+
+  /** Hands the queue to an upload; the entries stay journaled until markFlushed. */
+  public synchronized List<Pending> drain() {
+    List<Pending> out = new ArrayList<>(queue);
+    queue.clear();
+    return out;
+  }
+
+  /** Puts entries that failed to upload back at the head of the queue, in their original order. */
+  public synchronized void requeue(List<Pending> failed) {
+    requeueLocked(failed);
+  }
+
+  /**
+   * Ends a flush and compacts the journal down to what is still queued. An explicit flush request
+   * stays set while entries remain, so a dump that failed to upload goes out on the next poll.
+   */
+  public void markFlushed(long now, String reason) {
+    synchronized (this) {
+      lastFlushAt = now;
+      if (queue.isEmpty()) flushRequested = false;
+      lastReason = reason;
+      flushes++;
+    }
+    compact();
+  }
+
+  private void requeueLocked(List<Pending> entries) {
+    for (int i = entries.size() - 1; i >= 0; i--) queue.addFirst(entries.get(i));
+    while (queue.size() > QUEUE_CAPACITY) {
+      queue.pollLast();
+      dropped++;
+    }
+  }
+
+  /** Appends one entry to the journal, writing a large payload to its own file first. */
+  private void append(Pending p) {
+    synchronized (fileLock) {
+      if (store == null) return;
+      try {
+        String payload = p.payload.toString();
+        JSONObject line = header(p);
+        if (payload.length() > INLINE_PAYLOAD_MAX) {
+          if (!payloadDir.exists()) payloadDir.mkdirs();
+          File blob = new File(payloadDir, p.id + ".json");
+          try (FileOutputStream out = new FileOutputStream(blob)) {
+            out.write(payload.getBytes(StandardCharsets.UTF_8));
+          }
+          line.put("payloadFile", blob.getName());
+          externalPayloads.add(p.id);
+        } else {
+          line.put("payload", p.payload);
+        }
+        try (FileOutputStream out = new FileOutputStream(store, true)) {
+          out.write((line.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+      } catch (Exception e) {
+        if (BuildConfig.DEBUG) android.util.Log.w("TransmissionScheduler", "append", e);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal with the queued entries only (payload files are referenced, not copied)
+   * and deletes payload files nothing refers to anymore.
+   */
+  private void compact() {
+    synchronized (fileLock) {
+      if (store == null) return;
+      List<Pending> snapshot;
+      synchronized (this) {
+        snapshot = new ArrayList<>(queue);
+      }
+      try {
+        Set<String> kept = new HashSet<>();
+        Set<Long> external = new HashSet<>();
+        StringBuilder sb = new StringBuilder();
+        for (Pending p : snapshot) {
+          JSONObject line = header(p);
+          if (externalPayloads.contains(p.id)) {
+            line.put("payloadFile", p.id + ".json");
+            kept.add(p.id + ".json");
+            external.add(p.id);
+          } else {
+            line.put("payload", p.payload);
+          }
+          sb.append(line.toString()).append('\n');
+        }
+        File tmp = new File(store.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+          out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+          out.getFD().sync();
+        }
+        if (!tmp.renameTo(store) && BuildConfig.DEBUG) android.util.Log.w("TransmissionScheduler", "rename failed");
+        externalPayloads.retainAll(external);
+        File[] blobs = payloadDir.listFiles();
+        if (blobs != null) {
+          for (File blob : blobs) {
+            if (!kept.contains(blob.getName())) blob.delete();
+          }
+        }
+      } catch (Exception e) {
+        if (BuildConfig.DEBUG) android.util.Log.w("TransmissionScheduler", "compact", e);
+      }
+    }
+  }
+
+  private static JSONObject header(Pending p) throws Exception {
+    JSONObject o = new JSONObject();
+    o.put("id", p.id);
+    o.put("action", p.action);
+    o.put("type", p.type);
+    o.put("occurredAt", p.occurredAt);
+    return o;
+  }
+
+  @Nullable
+  private static JSONObject parseLine(String line) {
+    try {
+      return new JSONObject(line);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private static Pending fromJournal(JSONObject o, File dir) {
+    try {
+      JSONObject payload = o.optJSONObject("payload");
+      String payloadFile = o.optString("payloadFile", "");
+      if (!payloadFile.isEmpty()) {
+        File blob = new File(dir, payloadFile);
+        if (!blob.exists()) return null;
+        byte[] bytes = new byte[(int) blob.length()];
+        try (FileInputStream in = new FileInputStream(blob)) {
+          int read = 0;
+          while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) break;
+            read += n;
+          }
+        }
+        payload = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+      }
+      return new Pending(o.getLong("id"), o.optString("action", ""), o.optString("type", ""),
+        payload != null ? payload : new JSONObject(), o.optLong("occurredAt", System.currentTimeMillis()));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  public synchronized int getQueued() {
+    return queue.size();
+  }
+
+  public synchronized long getFlushes() {
+    return flushes;
+  }
+
+  public synchronized long getDeferredCycles() {
+    return deferredCycles;
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  @Nullable
+  public synchronized String getLastReason() {
+    return lastReason;
+  }
+
+  private static boolean isConnected(Context context) {
+    try {
+      ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      if (cm == null) return true;
+      NetworkInfo info = cm.getActiveNetworkInfo();
+      return info != null && info.isConnected();
+    } catch (Exception e) {
+      return true;
+    }
+  }
+
+  private static boolean isMetered(Context context) {
+    try {
+      ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      return cm == null || cm.isActiveNetworkMetered();
+    } catch (Exception e) {
+      return true;
+    }
+  }
+
+  private static boolean isCharging(Context context) {
+    Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+  }
+}
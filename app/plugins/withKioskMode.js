@@ -19,7 +19,26 @@ function copyJavaSources(projectRoot, platformProjectRoot) {
   if (!fs.existsSync(destDir)) {
     fs.mkdirSync(destDir, { recursive: true });
   }
-  const files = ['DeviceAdminReceiver.java', 'KioskModule.java', 'KioskModulePackage.java', 'MdmSyncService.java'];
+  const files = [
+    'AppInventory.java',
+    'ClassroomRelay.java',
+    'CommandLanes.java',
+    'CommandLatencyStats.java',
+    'DeviceAdminReceiver.java',
+    'DiagnosticRing.java',
+    'DriftVerifier.java',
+    'EndpointCircuitBreaker.java',
+    'HeartbeatState.java',
+    'KioskModule.java',
+    'KioskModulePackage.java',
+    'LockTaskAllowList.java',
+    'MdmSyncService.java',
+    'PackagePolicyMatcher.java',
+    'PolicySchedule.java',
+    'ScreenshotPipeline.java',
+    'SyncTracer.java',
+    'TransmissionScheduler.java'
+  ];
   for (const file of files) {
     const src = path.join(srcDir, file);
     const dest = path.join(destDir, file);
@@ -113,6 +132,10 @@ const withKioskMode = (config) => {
     if (!hasForegroundServiceDataSync) perms.push({ $: { 'android:name': 'android.permission.FOREGROUND_SERVICE_DATA_SYNC' } });
     const hasPackageUsageStats = perms.some(p => p.$?.['android:name'] === 'android.permission.PACKAGE_USAGE_STATS');
     if (!hasPackageUsageStats) perms.push({ $: { 'android:name': 'android.permission.PACKAGE_USAGE_STATS' } });
+    const hasNetworkState = perms.some(p => p.$?.['android:name'] === 'android.permission.ACCESS_NETWORK_STATE');
+    if (!hasNetworkState) perms.push({ $: { 'android:name': 'android.permission.ACCESS_NETWORK_STATE' } });
+    const hasScheduleExactAlarm = perms.some(p => p.$?.['android:name'] === 'android.permission.SCHEDULE_EXACT_ALARM');
+    if (!hasScheduleExactAlarm) perms.push({ $: { 'android:name': 'android.permission.SCHEDULE_EXACT_ALARM' } });
 
     if (!config.modResults.manifest.application[0].receiver) {
       config.modResults.manifest.application[0].receiver = [];
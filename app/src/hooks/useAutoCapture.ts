@@ -1,6 +1,9 @@
 import { useEffect, useRef } from 'react';
+import { NativeModules, Platform } from 'react-native';
 import { captureScreen } from 'react-native-view-shot';
 
+const { KioskModule } = NativeModules;
+
 interface AutoCaptureOptions {
   viewShotRef: React.RefObject<unknown>;
   activeTabId: string;
@@ -43,8 +46,36 @@ export const useAutoCapture = ({
 
   const CAPTURE_OPTS = { format: 'jpg' as const, quality: 0.5, result: 'base64' as const };
 
+  const markCaptured = (event: string) => {
+    lastCaptureRef.current = {
+      tabId: activeTabId,
+      url: currentUrl,
+      timestamp: Date.now()
+    };
+    logActivity(event, currentUrl);
+  };
+
+  const doNativeCapture = async (event: string): Promise<boolean> => {
+    if (Platform.OS !== 'android' || typeof KioskModule?.captureScreenshot !== 'function') return false;
+    try {
+      const result = await KioskModule.captureScreenshot({
+        apiUrl: backendApiUrl,
+        deviceId,
+        event,
+        url: currentUrl,
+        tabId: activeTabId,
+        force: event !== 'AUTO_TIMER'
+      });
+      if (result?.uploaded) markCaptured(event);
+      return result?.uploaded === true || ['unchanged', 'busy', 'superseded'].includes(result?.reason ?? '');
+    } catch {
+      return false;
+    }
+  };
+
   const doCapture = async (event: 'AUTO_TIMER' | 'TAB_CHANGE' | 'URL_CHANGE' | 'MANUAL') => {
     if (!enabled) return;
+    if (await doNativeCapture(event)) return;
 
     let base64: string | null = null;
     try {
@@ -65,13 +96,7 @@ export const useAutoCapture = ({
         })
       });
       if (!res.ok) return;
-
-      lastCaptureRef.current = {
-        tabId: activeTabId,
-        url: currentUrl,
-        timestamp: Date.now()
-      };
-      logActivity(event, currentUrl);
+      markCaptured(event);
     } catch {
     }
   };
@@ -9,6 +9,10 @@ import { loadPinLockActive, savePinLockActive } from '../storage/tabsStorage';
 
 const { KioskModule } = NativeModules;
 
+const HEARTBEAT_INTERVAL_MS = Platform.OS === 'android' ? 120000 : 15000;
+/** Tipos que o MdmSyncService também executa a partir do feed de broadcasts da turma. */
+const NATIVE_BROADCAST_TYPES = ['LOCK_SCREEN', 'SET_BRIGHTNESS', 'VOLUME', 'LAUNCH_APP', 'ALERT'];
+
 type Policies = {
   blockedDomains: string[];
   allowedApps: string[];
@@ -32,6 +36,7 @@ export const useDeviceSync = (
   const activeTabIdRef = useRef(activeTabId);
   const currentUrlRef = useRef(currentUrl ?? '');
   currentUrlRef.current = currentUrl ?? '';
+  const lastHeartbeatUrlRef = useRef('');
   const socketServiceRef = useRef<SocketSyncService | null>(null);
   const brightnessPermissionAlertShownRef = useRef(false);
   const nativeMdmUnavailableAlertShownRef = useRef(false);
@@ -110,11 +115,12 @@ export const useDeviceSync = (
           try {
             const blocked = next.blockedApps ?? [];
             const allowed = next.allowedApps ?? [];
-            if (KioskModule.setBlockedPackages) {
+            const scheduled = Array.isArray(data.policies.schedule) && data.policies.schedule.length > 0;
+            if (!scheduled && KioskModule.setBlockedPackages) {
               KioskModule.setBlockedPackages(blocked);
               logActivity('BLOCKED_APPS_APPLIED', { count: blocked.length });
             }
-            if (KioskModule.setAllowedPackages) KioskModule.setAllowedPackages(allowed);
+            if (!scheduled && KioskModule.setAllowedPackages) KioskModule.setAllowedPackages(allowed);
             if (next.kioskMode && typeof (KioskModule as { startKiosk?: () => void }).startKiosk === 'function') {
               (KioskModule as { startKiosk: () => void }).startKiosk();
             } else if (!next.kioskMode && typeof (KioskModule as { stopKiosk?: () => void }).stopKiosk === 'function') {
@@ -172,6 +178,13 @@ export const useDeviceSync = (
 
     const handleCommand = async (command: any) => {
       try {
+        if (
+          Platform.OS === 'android' && typeof command?.broadcastId === 'number' &&
+          NATIVE_BROADCAST_TYPES.includes(command.type) && KioskModule?.claimBroadcast
+        ) {
+          const claimed = await KioskModule.claimBroadcast(command.broadcastId).catch(() => true);
+          if (!claimed) return;
+        }
         logActivity('COMMAND_RECEIVED', { type: command?.type, payload: command?.payload });
 
         const deviceControlTypes = ['SET_BRIGHTNESS', 'VOLUME', 'LOCK_SCREEN', 'LAUNCH_CALCULATOR', 'LAUNCH_CAMERA', 'LAUNCH_APP'];
@@ -272,6 +285,18 @@ export const useDeviceSync = (
           const pkg = command.payload?.packageName;
           if (!pkg) return;
           const allowed = policies.allowedApps ?? [];
+          const doLaunch = () => {
+            DeviceControls.launchApp(pkg);
+            logActivity('APP_LAUNCHED', { packageName: pkg, source: 'panel' });
+          };
+          if (Platform.OS === 'android' && KioskModule?.grantLockTaskPackage && policies.kioskMode && !allowed.includes(pkg)) {
+            try {
+              await KioskModule.grantLockTaskPackage(pkg, command.payload?.grantMinutes ?? 60);
+            } catch {
+            }
+            doLaunch();
+            return;
+          }
           const hadToAddToAllowed = Platform.OS === 'android' && KioskModule?.setAllowedPackages && policies.kioskMode && !allowed.includes(pkg);
           if (hadToAddToAllowed) {
             try {
@@ -279,10 +304,6 @@ export const useDeviceSync = (
             } catch {
             }
           }
-          const doLaunch = () => {
-            DeviceControls.launchApp(pkg);
-            logActivity('APP_LAUNCHED', { packageName: pkg, source: 'panel' });
-          };
           if (hadToAddToAllowed) {
             setTimeout(doLaunch, 400);
           } else {
@@ -366,10 +387,11 @@ export const useDeviceSync = (
             try {
               const allowedApps = Array.isArray(payload.allowedApps) ? payload.allowedApps : [];
               const blockedApps = Array.isArray(payload.blockedApps) ? payload.blockedApps : [];
-              if (KioskModule.setAllowedPackages) {
+              const scheduled = Array.isArray(payload.schedule) && payload.schedule.length > 0;
+              if (!scheduled && KioskModule.setAllowedPackages) {
                 KioskModule.setAllowedPackages(allowedApps);
               }
-              if (KioskModule.setBlockedPackages) {
+              if (!scheduled && KioskModule.setBlockedPackages) {
                 KioskModule.setBlockedPackages(blockedApps);
                 logActivity('BLOCKED_APPS_APPLIED', { count: blockedApps.length });
               }
@@ -391,14 +413,17 @@ export const useDeviceSync = (
     const doHeartbeat = () => {
       socketService.sendHeartbeat();
       const url = currentUrlRef.current;
+      const urlChanged = !!url && url !== lastHeartbeatUrlRef.current;
       fetch(`${backendApiUrl}/devices/${deviceId}/heartbeat`, {
         method: 'PUT',
         headers: { 'Content-Type': 'application/json' },
-        body: JSON.stringify(url ? { currentUrl: url } : {})
+        body: JSON.stringify(urlChanged ? { currentUrl: url } : {})
+      }).then((res) => {
+        if (res.ok && urlChanged) lastHeartbeatUrlRef.current = url;
       }).catch(() => {});
     };
     doHeartbeat();
-    const heartbeatInterval = setInterval(doHeartbeat, 15000);
+    const heartbeatInterval = setInterval(doHeartbeat, HEARTBEAT_INTERVAL_MS);
 
     return () => {
       socketService.setConnectionListener(null);
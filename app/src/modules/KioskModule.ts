@@ -2,11 +2,109 @@ import { NativeModules } from 'react-native';
 
 const { KioskModule } = NativeModules;
 
+export interface SyncCircuitState {
+  endpoint: string;
+  state: 'CLOSED' | 'OPEN' | 'HALF_OPEN';
+  consecutiveFailures: number;
+  rejectedCount: number;
+  lastFailureAt: number;
+  retryInMs: number;
+}
+
+export interface CommandLatencySummary {
+  type: string;
+  metric: 'fetchToDone' | 'enqueueToDone';
+  count: number;
+  p50: number;
+  p90: number;
+  p99: number;
+  max: number;
+}
+
+export interface CommandLaneStats {
+  lane: 'urgent' | 'background';
+  depth: number;
+  maxDepth: number;
+  submitted: number;
+  completed: number;
+  lastWaitMs: number;
+  maxWaitMs: number;
+}
+
+export interface DriftStats {
+  cycles: number;
+  checked: number;
+  drifted: number;
+  repaired: number;
+  driftRate: number;
+  lockTaskChecks: number;
+  lockTaskDrifts: number;
+}
+
+export interface TransmissionStats {
+  queued: number;
+  flushes: number;
+  deferredCycles: number;
+  dropped: number;
+  lastReason: string | null;
+}
+
+export interface HeartbeatStats {
+  deltas: number;
+  pings: number;
+  skipped: number;
+}
+
+export interface HttpCacheStats {
+  requests: number;
+  hits: number;
+  network: number;
+  size: number;
+  maxSize: number;
+}
+
+export interface InventoryApp {
+  packageName: string;
+  label: string;
+  versionName: string;
+  system: boolean;
+  hidden: boolean;
+}
+
+export interface AppInventory {
+  hash: string;
+  confirmedHash: string | null;
+  apps: InventoryApp[];
+}
+
+export interface ScreenshotCaptureOptions {
+  apiUrl: string;
+  deviceId: string;
+  event?: string;
+  url?: string;
+  tabId?: string;
+  maxWidth?: number;
+  quality?: number;
+  format?: 'jpeg' | 'webp';
+  force?: boolean;
+}
+
+export interface ScreenshotCaptureResult {
+  uploaded: boolean;
+  reason: string;
+  width: number;
+  height: number;
+  bytes: number;
+  distance: number;
+}
+
 export interface KioskInterface {
   startKiosk(): void;
   stopKiosk(): void;
   isDeviceOwner(): Promise<boolean>;
   setAllowedPackages(packages: string[]): void;
+  grantLockTaskPackage(packageName: string, minutes: number): Promise<boolean>;
+  claimBroadcast(broadcastId: number): Promise<boolean>;
   setBlockedPackages(packages: string[]): void;
   setVolume(level: number): void;
   setBrightness(level: number): void;
@@ -15,6 +113,20 @@ export interface KioskInterface {
   launchCalculator(): void;
   launchPackage(packageName: string): void;
   setAppStoreEnabled(enabled: boolean): void;
+  getSyncCircuitState(): Promise<SyncCircuitState[]>;
+  getCommandLatencyStats(): Promise<CommandLatencySummary[]>;
+  dumpDiagnostics(): Promise<string>;
+  setSyncTracingEnabled(enabled: boolean): void;
+  getSyncTrace(): Promise<string>;
+  clearSyncTrace(): void;
+  getCommandLaneStats(): Promise<CommandLaneStats[]>;
+  getDriftStats(): Promise<DriftStats>;
+  getTransmissionStats(): Promise<TransmissionStats>;
+  getHeartbeatStats(): Promise<HeartbeatStats | null>;
+  getHttpCacheStats(): Promise<HttpCacheStats | null>;
+  getAppInventory(): Promise<AppInventory>;
+  captureScreenshot(options: ScreenshotCaptureOptions): Promise<ScreenshotCaptureResult>;
+  setRelayMode(role: 'off' | 'relay' | 'peer', host: string | null, port: number): void;
 }
 
 export default KioskModule as KioskInterface;
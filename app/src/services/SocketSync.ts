@@ -5,6 +5,7 @@ export interface Command {
   type: string;
   payload?: any;
   timestamp: number;
+  broadcastId?: number;
 }
 
 type ConnectionListener = (connected: boolean) => void;